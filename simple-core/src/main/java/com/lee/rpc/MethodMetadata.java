@@ -10,6 +10,21 @@ public class MethodMetadata {
     private String methodName;
     private String parameterType;
 
+    /**
+     * 返回值是Iterator或者Stream的时候为true，这个时候returnType是元素的类型
+     */
+    private boolean stream;
+
+    /**
+     * 服务器端的@RpcMethod声明的，客户端根据这个来决定Channel断开的时候是否可以把还没有回复的请求发送给别的RpcServer
+     */
+    private boolean idempotent;
+
+    /**
+     * 服务器端的@RpcMethod声明的，客户端发送以后不等待回复，参考ProtocolHelper的V6
+     */
+    private boolean oneWay;
+
     public byte getMethodId() {
         return methodId;
     }
@@ -41,4 +56,28 @@ public class MethodMetadata {
     public void setParameterType(String parameterType) {
         this.parameterType = parameterType;
     }
+
+    public boolean isStream() {
+        return stream;
+    }
+
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public boolean isOneWay() {
+        return oneWay;
+    }
+
+    public void setOneWay(boolean oneWay) {
+        this.oneWay = oneWay;
+    }
 }
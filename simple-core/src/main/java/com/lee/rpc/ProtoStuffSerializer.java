@@ -1,48 +1,55 @@
 package com.lee.rpc;
 
+import com.lee.rpc.helper.SchemaGenerator;
+import com.lee.rpc.helper.recycler.ByteBufInputRecycler;
+import com.lee.rpc.helper.recycler.ByteBufOutputRecycler;
+import com.lee.rpc.schema.ByteBufInput;
+import com.lee.rpc.schema.ByteBufOutput;
 import com.lee.rpc.schema.Serializer;
 import com.lee.rpc.util.stream.ByteBufInputStream;
 import com.lee.rpc.util.stream.ByteBufOutputStream;
-import io.protostuff.LinkedBuffer;
-import io.protostuff.ProtostuffIOUtil;
 import io.protostuff.Schema;
-import io.protostuff.runtime.RuntimeSchema;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * 直接读写stream底层的ByteBuf，不再经过LinkedBuffer和InputStream，格式和ProtostuffIOUtil是一样的，参考ByteBufOutput
+ * Schema优先使用SchemaGenerator生成的，不满足条件的类型还是使用RuntimeSchema
+ *
  * @author l46li
  */
 @Slf4j
 public class ProtoStuffSerializer<S> implements Serializer<S> {
 
-    private static final ThreadLocal<LinkedBuffer> bufferCache = ThreadLocal.withInitial(() -> LinkedBuffer.allocate(4096));
     private final Schema<S> schema;
 
     public ProtoStuffSerializer(Class<S> type) {
-        schema = RuntimeSchema.getSchema(type);
+        schema = SchemaGenerator.getSchema(type);
     }
 
     @Override
     public void serialize(S object, ByteBufOutputStream out) {
-        LinkedBuffer buffer = bufferCache.get();
+        ByteBufOutput output = ByteBufOutputRecycler.newInstance(out.buffer());
         try {
-            ProtostuffIOUtil.writeTo(out, object, schema, buffer);
+            schema.writeTo(output, object);
         } catch (Exception e) {
-            bufferCache.remove();
             throw new RpcException("Can not serialize object : " + object, e);
         } finally {
-            buffer.clear();
+            ByteBufOutputRecycler.recycle(output);
         }
     }
 
     @Override
     public S deserialize(ByteBufInputStream in) {
+        ByteBufInput input = ByteBufInputRecycler.newInstance(in.buffer());
         try {
             S value = schema.newMessage();
-            ProtostuffIOUtil.mergeFrom(in, value, schema);
+            schema.mergeFrom(input, value);
+            input.checkLastTagWas(0);
             return value;
         } catch (Exception e) {
             throw new RpcException("Can not deserialize from bytes with schema " + schema, e);
+        } finally {
+            ByteBufInputRecycler.recycle(input);
         }
     }
 }
@@ -1,11 +1,12 @@
 package com.lee.rpc;
 
+import com.lee.rpc.helper.recycler.ByteBufInputRecycler;
+import com.lee.rpc.helper.recycler.ByteBufOutputRecycler;
+import com.lee.rpc.schema.ByteBufInput;
+import com.lee.rpc.schema.ByteBufOutput;
 import com.lee.rpc.schema.RpcExceptionSchema;
-import io.protostuff.LinkedBuffer;
-import io.protostuff.ProtostuffIOUtil;
-
-import java.io.InputStream;
-import java.io.OutputStream;
+import com.lee.rpc.util.stream.ByteBufInputStream;
+import com.lee.rpc.util.stream.ByteBufOutputStream;
 
 /**
  * 后面实现一个RpcException包含ID的例子，把这些ID和错误原因一一对应，这样的话，服务端和客户端通过这个ID来统一消息
@@ -15,27 +16,30 @@ import java.io.OutputStream;
  */
 public class RpcExceptionSerializer {
 
-    private static final ThreadLocal<LinkedBuffer> BUFFER = ThreadLocal.withInitial(() -> LinkedBuffer.allocate(4096));
     private static final RpcExceptionSchema schema = new RpcExceptionSchema();
 
-    public void serialize(RpcException rpcException, OutputStream out) {
-        LinkedBuffer buffer = BUFFER.get();
+    public void serialize(RpcException rpcException, ByteBufOutputStream out) {
+        ByteBufOutput output = ByteBufOutputRecycler.newInstance(out.buffer());
         try {
-            ProtostuffIOUtil.writeTo(out, rpcException, schema, buffer);
+            schema.writeTo(output, rpcException);
         } catch (Exception e) {
             throw new RpcException(e);
         } finally {
-            buffer.clear();
+            ByteBufOutputRecycler.recycle(output);
         }
     }
 
-    public RpcException deserialize(InputStream in) {
+    public RpcException deserialize(ByteBufInputStream in) {
+        ByteBufInput input = ByteBufInputRecycler.newInstance(in.buffer());
         try {
             RpcException message = schema.newMessage();
-            ProtostuffIOUtil.mergeFrom(in, message, schema);
+            schema.mergeFrom(input, message);
+            input.checkLastTagWas(0);
             return message;
         } catch (Exception e) {
             throw new RpcException(e);
+        } finally {
+            ByteBufInputRecycler.recycle(input);
         }
     }
 }
@@ -1,41 +1,44 @@
 package com.lee.rpc;
 
+import com.lee.rpc.helper.recycler.ByteBufInputRecycler;
+import com.lee.rpc.helper.recycler.ByteBufOutputRecycler;
+import com.lee.rpc.schema.ByteBufInput;
+import com.lee.rpc.schema.ByteBufOutput;
 import com.lee.rpc.schema.RpcServiceSchema;
-import io.protostuff.LinkedBuffer;
-import io.protostuff.ProtostuffIOUtil;
+import com.lee.rpc.util.stream.ByteBufInputStream;
+import com.lee.rpc.util.stream.ByteBufOutputStream;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-
 /**
  * @author Administrator
  */
 @Slf4j
 public class RpcMetadataSerializer {
 
-    private static final ThreadLocal<LinkedBuffer> buffer = ThreadLocal.withInitial(() -> LinkedBuffer.allocate(4096));
     private static final RpcServiceSchema schema = new RpcServiceSchema();
 
-    public void serialize(RpcService rpcService, OutputStream out) {
-        LinkedBuffer linkedBuffer = buffer.get();
+    public void serialize(RpcService rpcService, ByteBufOutputStream out) {
+        ByteBufOutput output = ByteBufOutputRecycler.newInstance(out.buffer());
         try {
-            ProtostuffIOUtil.writeTo(out, rpcService, schema, linkedBuffer);
+            schema.writeTo(output, rpcService);
         } catch (Exception e) {
-            buffer.remove();
             throw new RpcException(e);
         } finally {
-            linkedBuffer.clear();
+            ByteBufOutputRecycler.recycle(output);
         }
     }
 
-    public RpcService deserialize(InputStream in) {
+    public RpcService deserialize(ByteBufInputStream in) {
+        ByteBufInput input = ByteBufInputRecycler.newInstance(in.buffer());
         try {
             RpcService rpcService = schema.newMessage();
-            ProtostuffIOUtil.mergeFrom(in, rpcService, schema);
+            schema.mergeFrom(input, rpcService);
+            input.checkLastTagWas(0);
             return rpcService;
         } catch (Exception e) {
             throw new RpcException(e);
+        } finally {
+            ByteBufInputRecycler.recycle(input);
         }
     }
 }
@@ -1,7 +1,12 @@
 package com.lee.rpc;
 
+import com.lee.rpc.annotation.RpcMethod;
 import com.lee.rpc.annotation.Serialization;
 import com.lee.rpc.executor.AbstractExecutor;
+import com.lee.rpc.helper.StreamHelper;
+import com.lee.rpc.helper.client.LatencyTracker;
+import com.lee.rpc.helper.client.Reducer;
+import com.lee.rpc.helper.client.ResultCache;
 import com.lee.rpc.schema.Serializer;
 import com.lee.rpc.schema.primitives.*;
 import com.lee.rpc.util.stream.ByteBufInputStream;
@@ -38,6 +43,39 @@ public class RpcMethodUnit {
     private String group;
     private Executor executor;
 
+    /**
+     * 参考RpcMethod.deserializeOnWorker和RpcMethod.serializeOnWorker
+     */
+    private boolean deserializeOnWorker;
+    private boolean serializeOnWorker;
+
+    /**
+     * 返回值是Iterator或者Stream的流式方法，returnValueSerializer是元素的序列化器，参考StreamHelper
+     */
+    private boolean stream;
+
+    /**
+     * 只在客户端使用，参考RpcMethod.hedge，不需要对冲的方法为null
+     */
+    private LatencyTracker latencyTracker;
+    private long hedgeDelayMillis;
+
+    /**
+     * 只在客户端使用，参考RpcMethod.coalesce
+     */
+    private boolean coalesce;
+
+    /**
+     * 只在客户端使用，参考RpcMethod.cacheTtlMillis，不需要缓存的方法为null
+     */
+    private ResultCache resultCache;
+
+    /**
+     * 只在客户端使用，参考RpcMethod.broadcast，不是广播的方法为null
+     */
+    private Reducer<Object> reducer;
+    private boolean partialResult;
+
     /**
      * Method方法的参数的数量必须要相同，就算不想设置值，那么该参数也必须使用null来表示
      *
@@ -82,7 +120,20 @@ public class RpcMethodUnit {
 
         metadata.setMethodName(serviceMethod.getName());
 
+        RpcMethod rpcMethod = serviceMethod.getDeclaredAnnotation(RpcMethod.class);
+        if (rpcMethod != null) {
+            deserializeOnWorker = rpcMethod.deserializeOnWorker();
+            serializeOnWorker = rpcMethod.serializeOnWorker();
+            metadata.setIdempotent(rpcMethod.idempotent());
+        }
+
         if (!Void.TYPE.equals(serviceMethod.getGenericReturnType())) {
+            //流式方法按照元素来序列化，每一个元素都是单独的一帧
+            stream = StreamHelper.isStreamType(serviceMethod.getReturnType());
+            Class<?> returnType = stream ?
+                    StreamHelper.getElementType(serviceMethod.getGenericReturnType()) : serviceMethod.getReturnType();
+            metadata.setStream(stream);
+
             Serialization serialization = serviceMethod.getDeclaredAnnotation(Serialization.class);
             if (serialization != null) {
                 @SuppressWarnings("rawtypes")
@@ -91,20 +142,24 @@ public class RpcMethodUnit {
                     returnValueSerializer = serialize.getConstructor().newInstance();
                 } catch (Exception e) {
                     log.warn("Can not use serializer " + serialize + " user default serializer", e);
-                    returnValueSerializer = new ProtoStuffSerializer<>(serviceMethod.getReturnType());
+                    returnValueSerializer = new ProtoStuffSerializer<>(returnType);
                 }
             } else {
-                Class<?> returnType = serviceMethod.getReturnType();
                 if (ClassUtils.isPrimitiveOrWrapper(returnType)) {
                     returnValueSerializer = getPrimitiveSerializer(returnType);
                 } else {
                     returnValueSerializer = new ProtoStuffSerializer<>(returnType);
                 }
             }
-            metadata.setReturnType(serviceMethod.getReturnType().getName());
+            metadata.setReturnType(returnType.getName());
+            if (rpcMethod != null && rpcMethod.oneWay()) {
+                log.warn("Method {} has return value, oneWay is ignored", serviceMethod);
+            }
         } else {
             //如果参数为null的话，那么直接设置成EMPTY
             metadata.setReturnType(EMPTY);
+            //没有返回值的方法客户端才可以不等待回复
+            metadata.setOneWay(rpcMethod != null && rpcMethod.oneWay());
         }
 
         //现目前支持一个参数，后面如果需要支持多参数，那么在修改成多参数模式，之前其实是可以支持多参数的，但是为了
@@ -170,6 +225,11 @@ public class RpcMethodUnit {
         return this;
     }
 
+    public RpcMethodUnit withStream(boolean stream) {
+        this.stream = stream;
+        return this;
+    }
+
     public RpcMethodUnit withParameterType(String parameterType) {
         if (!parameterType.equals(EMPTY)) {
             try {
@@ -1,22 +1,36 @@
 package com.lee.rpc;
 
+import com.lee.rpc.helper.RpcRequestBatcher;
+import com.lee.rpc.helper.StreamHelper;
+import com.lee.rpc.helper.client.ClientHelper.Task;
+import com.lee.rpc.helper.recycler.ByteBufInputStreamRecycler;
+import com.lee.rpc.helper.recycler.ByteBufOutputStreamRecycler;
+import com.lee.rpc.helper.recycler.RpcRequestRecycler;
+import com.lee.rpc.helper.server.InflightRequests;
+import com.lee.rpc.util.stream.ByteBufInputStream;
+import com.lee.rpc.util.stream.ByteBufOutputStream;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.ObjectPool;
 import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 import java.io.Serializable;
+import java.util.Iterator;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
 import static com.lee.rpc.util.Constant.*;
-import static com.lee.rpc.util.exception.ErrorType.SERVER_ERROR;
+import static com.lee.rpc.util.exception.ErrorType.*;
 
 /**
  * @author Administrator
  */
 @Data
+@Slf4j
 public class RpcRequest implements Serializable, Runnable, Delayed {
 
     private final ObjectPool.Handle<RpcRequest> handle;
@@ -31,6 +45,39 @@ public class RpcRequest implements Serializable, Runnable, Delayed {
     private transient long waitTime;
     private transient int retryCount;
 
+    /**
+     * 已经编码好的body
+     * 1. RpcMethodUnit.deserializeOnWorker为true的时候，decoder只是把参数所在的帧retain以后放到这里，在executor线程里面反序列化
+     * 2. RpcMethodUnit.serializeOnWorker为true的时候，返回值在executor线程里面序列化到这里，encoder只需要把字节拷贝过去
+     * 3. 客户端的参数都是在调用线程里面序列化好以后放到这里的，参考ClientProxy.encodeParameter
+     * 用完以后或者RpcRequest回收的时候释放
+     */
+    private transient ByteBuf payload;
+
+    /**
+     * 只有客户端使用，encoder在IO线程里面把它注册到当前Channel的PendingRequests里面，参考PendingRequests
+     */
+    private transient Task task;
+
+    /**
+     * 本地System.nanoTime()的deadline，0表示没有限制
+     * 1. 客户端是调用者的超时时间，encoder把剩余的时间写到协议头里面
+     * 2. 服务器端是decoder根据协议头里面的剩余时间算出来的，过期以后客户端已经不再等待了，执行了也没有人要结果
+     */
+    private transient long deadline;
+
+    /**
+     * 只有服务器端使用，收到CANCEL帧的时候在IO线程里面设置，执行器线程取出来的时候检查，参考InflightRequests
+     */
+    private transient volatile boolean cancelled;
+
+    /**
+     * 单向调用，参考RpcMethod.oneWay
+     * 1. 客户端在Channel协商出来的版本支持的时候设置，encoder在type上面加上ONE_WAY_FLAG，不注册Task
+     * 2. 服务器端是decoder根据ONE_WAY_FLAG设置的，执行完以后不写回复，失败了也只是打印日志
+     */
+    private transient boolean oneWay;
+
     public RpcRequest(ObjectPool.Handle<RpcRequest> handle) {
         this.handle = handle;
     }
@@ -65,9 +112,50 @@ public class RpcRequest implements Serializable, Runnable, Delayed {
         return this;
     }
 
+    public RpcRequest task(Task task) {
+        this.task = task;
+        return this;
+    }
+
+    public RpcRequest deadline(long deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    public boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    public RpcRequest oneWay(boolean oneWay) {
+        this.oneWay = oneWay;
+        return this;
+    }
+
+    public RpcRequest cancel() {
+        this.cancelled = true;
+        return this;
+    }
+
+    /**
+     * @return 客户端已经不再等待这个请求的结果了，要么是已经过期了，要么是客户端发送了CANCEL
+     */
+    public boolean isAbandoned() {
+        return cancelled || isExpired();
+    }
+
+    public RpcRequest payload(ByteBuf payload) {
+        this.payload = payload;
+        return this;
+    }
+
     public RpcRequest body(Object object) {
         this.body = object;
-        this.typeId = object == null ? EMPTY_TYPE : NORMAL;
+        if (object == null) {
+            this.typeId = EMPTY_TYPE;
+        } else {
+            //type(ABNORMAL).body(exception)这种写法不能够把ABNORMAL覆盖掉
+            this.typeId = object instanceof RpcException ? ABNORMAL : NORMAL;
+        }
         return this;
     }
 
@@ -75,19 +163,163 @@ public class RpcRequest implements Serializable, Runnable, Delayed {
         this.body = null;
         this.methodUnit = null;
         this.channel = null;
+        this.task = null;
+        this.deadline = 0;
+        this.cancelled = false;
+        this.oneWay = false;
+        this.retryCount = 0;
+        releasePayload();
         handle.recycle(this);
     }
 
     @Override
     public void run() {
+        if (isAbandoned()) {
+            //在队列里面等待的时间已经超过了客户端的超时时间，或者客户端已经取消了，不需要执行，也不需要回复
+            log.debug("Request {} abandoned before execution, drop it", requestId);
+            InflightRequests.release(this);
+            return;
+        }
+
+        try {
+            Object parameter = payload == null ? getBody() : deserializePayload();
+            Object result = methodUnit.invoke(parameter);
+            if (oneWay) {
+                //客户端没有在等待回复，失败的时候只能够在这里打印日志
+                if (result instanceof RpcException) {
+                    log.warn("One way request {} failed", requestId, (RpcException) result);
+                }
+                InflightRequests.release(this);
+                return;
+            }
+            if (methodUnit.isStream() && !(result instanceof RpcException)) {
+                writeStream(result);
+                return;
+            }
+
+            body(result);
+            if (typeId == NORMAL && methodUnit.isSerializeOnWorker()) {
+                serializePayload();
+            }
+            RpcRequestBatcher.write(getChannel(), this);
+        } catch (RpcException e) {
+            writeException(e);
+        } catch (Exception e) {
+            writeException(new RpcException(e).withStatus(SERVER_ERROR).withError(e.getMessage()));
+        }
+    }
+
+    private void writeException(RpcException e) {
+        if (oneWay) {
+            log.warn("One way request {} failed", requestId, e);
+            InflightRequests.release(this);
+            return;
+        }
+        RpcRequestBatcher.write(getChannel(), type(ABNORMAL).body(e));
+    }
+
+    /**
+     * 每一个元素都在当前线程里面序列化成一个STREAM帧，最后发送一个EMPTY_TYPE的帧表示结束，中途出错的时候发送ABNORMAL结束
+     * <p>
+     * 流式的帧不经过RpcRequestBatcher，直接按照顺序writeAndFlush，否则结束帧可能会比前面的STREAM帧先发送出去，
+     * 服务器端的FlushConsolidationHandler会把连续的flush合并掉。Channel不可写的时候暂停从Iterator里面取数据，
+     * 这样不管结果集有多大，服务器端都只需要ChannelOutboundBuffer高水位线那么多的内存
+     */
+    private void writeStream(Object result) {
         try {
-            getChannel().writeAndFlush(body(methodUnit.invoke(getBody())));
+            Iterator<?> iterator = StreamHelper.toIterator(result);
+            while (iterator.hasNext()) {
+                if (cancelled) {
+                    //客户端已经关闭了这个流，剩下的元素没有必要再取出来了
+                    log.debug("Stream {} cancelled by client", requestId);
+                    InflightRequests.release(this);
+                    return;
+                }
+
+                RpcRequest frame = nextFrame(iterator.next());
+                if (!StreamHelper.awaitWritable(channel)) {
+                    //客户端已经断开了，剩下的元素没有必要再取出来了
+                    log.debug("Channel closed, stop stream {}", requestId);
+                    RpcRequestRecycler.recycle(frame);
+                    InflightRequests.release(this);
+                    return;
+                }
+                channel.writeAndFlush(frame);
+            }
+            channel.writeAndFlush(body(null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channel.writeAndFlush(type(ABNORMAL).body(
+                    new RpcException(e).withStatus(RPC_SERVER_STOP).withError("Stream is interrupted"))
+            );
         } catch (RpcException e) {
-            getChannel().writeAndFlush(type(ABNORMAL).body(e));
+            channel.writeAndFlush(type(ABNORMAL).body(e));
         } catch (Exception e) {
-            getChannel().writeAndFlush(type(ABNORMAL).body(
+            channel.writeAndFlush(type(ABNORMAL).body(
                     new RpcException(e).withStatus(SERVER_ERROR).withError(e.getMessage()))
             );
+        } finally {
+            if (result instanceof AutoCloseable) {
+                close((AutoCloseable) result);
+            }
+        }
+    }
+
+    private RpcRequest nextFrame(Object element) {
+        if (element == null) {
+            throw new RpcException().withStatus(SERVER_ERROR).withError("Stream can not contain null element");
+        }
+
+        RpcRequest frame = RpcRequestRecycler.newInstance(serviceId, requestId, methodId)
+                .channel(channel)
+                .withMethodUnit(methodUnit)
+                .body(element)
+                .type(STREAM);
+        try {
+            //元素都在执行器线程里面序列化，序列化失败的时候可以直接结束整个流，而不是在encoder里面变成一个ABNORMAL的帧
+            frame.serializePayload();
+            return frame;
+        } catch (RpcException e) {
+            RpcRequestRecycler.recycle(frame);
+            throw e;
+        }
+    }
+
+    private void close(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            log.warn("Can not close stream {}", requestId, e);
+        }
+    }
+
+    private Object deserializePayload() {
+        try (ByteBufInputStream in = ByteBufInputStreamRecycler.newInstance(payload)) {
+            return methodUnit.deserializeToParameter(in);
+        } catch (Exception e) {
+            throw new RpcException(e).withError(e.getMessage()).withStatus(SERIALIZER_ERROR);
+        } finally {
+            //越早释放越好，不然整个帧所在的内存都要等到回复发送完成以后才能够释放
+            releasePayload();
+        }
+    }
+
+    private void serializePayload() {
+        //使用的是Channel的allocator，默认就是池化的direct内存，encoder里面只是一次内存拷贝
+        ByteBuf buffer = getChannel().alloc().directBuffer();
+        try (ByteBufOutputStream out = ByteBufOutputStreamRecycler.newInstance(buffer)) {
+            methodUnit.serializeReturnValue(getBody(), out);
+            payload = buffer;
+        } catch (Exception e) {
+            ReferenceCountUtil.release(buffer);
+            throw new RpcException(e).withError(e.getMessage()).withStatus(SERIALIZER_ERROR);
+        }
+    }
+
+    private void releasePayload() {
+        if (payload != null) {
+            ReferenceCountUtil.release(payload);
+            payload = null;
         }
     }
 
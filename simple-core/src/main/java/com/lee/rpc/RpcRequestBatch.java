@@ -0,0 +1,50 @@
+package com.lee.rpc;
+
+import io.netty.util.internal.ObjectPool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 同一个Channel上面一次性写出去的多个RpcRequest，encoder会把它编码成一个或者多个BATCH帧，然后回收自己和里面所有的RpcRequest
+ * 里面的RpcRequest都必须是同一个serviceId
+ *
+ * @author Administrator
+ */
+public class RpcRequestBatch {
+
+    private final ObjectPool.Handle<RpcRequestBatch> handle;
+    private final List<RpcRequest> requests = new ArrayList<>(16);
+    private int serviceId;
+
+    public RpcRequestBatch(ObjectPool.Handle<RpcRequestBatch> handle) {
+        this.handle = handle;
+    }
+
+    public RpcRequestBatch serviceId(int serviceId) {
+        this.serviceId = serviceId;
+        return this;
+    }
+
+    public RpcRequestBatch add(RpcRequest request) {
+        requests.add(request);
+        return this;
+    }
+
+    public int getServiceId() {
+        return serviceId;
+    }
+
+    public List<RpcRequest> getRequests() {
+        return requests;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    public void recycle() {
+        requests.clear();
+        handle.recycle(this);
+    }
+}
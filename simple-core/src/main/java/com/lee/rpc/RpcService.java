@@ -45,6 +45,17 @@ public class RpcService {
     private Weight weight;
     private String location;
 
+    /**
+     * 服务器端支持的最高协议版本，通过metadata传递给客户端，老的服务器不会传递这个值，客户端读取到的就是0
+     */
+    private int protocolVersion;
+
+    /**
+     * 只在服务器端使用，不会传递给客户端
+     */
+    private int maxFrameLength;
+    private int batchSize;
+
     public void register(RpcMethod rpcMethod, Method method, Object instance, Class<?> inter) {
         String group = rpcMethod == null ? "default" : rpcMethod.group();
         byte methodId = idGenerator.generateId();
@@ -198,6 +209,30 @@ public class RpcService {
         return weight;
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
     @Override
     public String toString() {
         return "RpcService{" +
@@ -206,6 +241,7 @@ public class RpcService {
                 ", serviceId=" + serviceId +
                 ", workers=" + workers +
                 ", location='" + location + '\'' +
+                ", protocolVersion=" + protocolVersion +
                 '}';
     }
 }
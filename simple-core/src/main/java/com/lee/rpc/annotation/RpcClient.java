@@ -1,5 +1,8 @@
 package com.lee.rpc.annotation;
 
+import com.lee.rpc.helper.ProtocolHelper;
+import com.lee.rpc.helper.client.ClientProxy;
+
 import java.lang.annotation.*;
 
 /**
@@ -27,4 +30,78 @@ public @interface RpcClient {
      * @return 返回需要访问的服务的名字
      */
     String service();
+
+    /**
+     * 客户端能够接受的最大帧大小，也就是服务器返回的结果最大可以有多大，只有在协商出来的协议版本大于等于V2的时候才生效
+     *
+     * @return 返回最大帧大小，单位是字节
+     */
+    int maxFrameLength() default ProtocolHelper.DEFAULT_MAX_FRAME_LENGTH;
+
+    /**
+     * 协商出来的协议版本大于等于V3的时候，同一个Channel上面的多个请求最多合并多少个到一个BATCH帧里面，小于等于1表示不合并
+     *
+     * @return 返回一个BATCH最多包含的请求个数
+     */
+    int batchSize() default 64;
+
+    /**
+     * 合并请求的时候最多等待多少微秒，0表示不等待，IO线程处理的时候队列里面有多少个就合并多少个，不会增加任何延迟
+     * 大于0的时候，在并发不高的情况下也可以合并更多的请求，但是每一个请求都会增加最多这么多的延迟
+     *
+     * @return 返回合并请求最多等待的微秒数
+     */
+    long batchDelayMicros() default 0;
+
+    /**
+     * 返回值默认是在IO线程里面反序列化的，返回值比较大的时候会拖慢同一个EventLoop上面的其他Channel，设置为true以后IO线程只负责
+     * 分帧，把body交给等待结果的调用线程去反序列化，反正调用线程也是阻塞在那里的
+     * 注意：CompletableFuture返回值的方法没有等待的调用线程，还是在完成future的IO线程里面反序列化
+     *
+     * @return 是否在调用线程里面反序列化返回值
+     */
+    boolean deserializeOnCaller() default false;
+
+    /**
+     * 当前服务所有方法默认的超时时间，到期没有收到回复的请求会换一个RpcServer重试，方法上面的@RpcMethod可以单独指定
+     * 流式方法表示的是两个元素之间最多等待多长时间
+     *
+     * @return 返回超时时间，单位是毫秒
+     */
+    long timeoutMillis() default ClientProxy.DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * 大于0的时候开启客户端的并发限制，同时发送出去还没有回复的请求个数会根据RTT、超时和SERVICE_BUSY在1到这个值之间自适应，
+     * 超过的请求在本地排队，而不是发送给服务器让它的队列越来越长，参考ConcurrencyLimiter，流式方法不受限制
+     *
+     * @return 返回同时发送出去的请求的最大个数，小于等于0表示不限制
+     */
+    int maxConcurrency() default 0;
+
+    /**
+     * 超时、连接断开、SERVICE_BUSY的重试以及对冲的请求都需要从预算里面扣，重试最多只能是成功请求的这个百分比，预算用完以后
+     * 重试直接失败，服务器过载的时候不会因为重试收到更多的请求，参考RetryBudget
+     *
+     * @return 返回重试占成功请求的百分比，小于等于0表示不限制
+     */
+    int retryBudgetPercent() default 10;
+
+    /**
+     * 配合retryBudgetPercent使用，请求很少的时候偶尔的超时也需要可以重试
+     *
+     * @return 返回每秒至少允许的重试次数
+     */
+    int minRetriesPerSecond() default 10;
+
+    /**
+     * 重试之前等待的时间，每一次重试翻倍，实际等待的是0到这个值之间的随机数，这样同一时间失败的请求不会在同一时间一起重试
+     *
+     * @return 返回第一次重试最多等待多长时间，单位是毫秒，0表示马上重试
+     */
+    long retryBackoffMillis() default 10;
+
+    /**
+     * @return 返回重试之前最多等待多长时间，单位是毫秒
+     */
+    long maxRetryBackoffMillis() default 1000;
 }
@@ -1,6 +1,7 @@
 package com.lee.rpc.annotation;
 
 import com.lee.rpc.executor.OverflowMode;
+import com.lee.rpc.helper.client.Reducer;
 
 import java.lang.annotation.*;
 
@@ -55,4 +56,107 @@ public @interface RpcMethod {
      * @return 返回具体的策略
      */
     OverflowMode overflowMode() default OverflowMode.DELAY;
+
+    /**
+     * 参数默认是在IO线程里面反序列化的，参数比较大或者比较复杂的时候会拖慢同一个EventLoop上面的所有Channel，设置为true以后
+     * IO线程只负责分帧，参数在当前方法的执行器线程里面反序列化
+     *
+     * @return 是否在执行器线程里面反序列化参数
+     */
+    boolean deserializeOnWorker() default false;
+
+    /**
+     * 返回值默认是在IO线程里面的encoder序列化的，返回值比较大的时候IO线程会成为瓶颈，设置为true以后返回值在当前方法的执行器线程
+     * 里面序列化到池化的direct内存，encoder只负责写协议头和拷贝字节
+     *
+     * @return 是否在执行器线程里面序列化返回值
+     */
+    boolean serializeOnWorker() default false;
+
+    /**
+     * 只在客户端接口上面使用，指定当前方法的超时时间，比如查询只给50毫秒，批处理给20秒，小于等于0表示使用@RpcClient上面的配置
+     *
+     * @return 返回超时时间，单位是毫秒
+     */
+    long timeoutMillis() default 0;
+
+    /**
+     * 只在服务器端的实现上面使用，通过METADATA告诉客户端当前方法重复执行是否安全，比如查询。Channel断开的时候还没有收到回复的
+     * 请求，幂等的方法会马上换一个RpcServer重新发送，不是幂等的方法直接返回RetryException，由调用者来决定是否需要重试
+     *
+     * @return 当前方法是否是幂等的
+     */
+    boolean idempotent() default false;
+
+    /**
+     * 只在服务器端的实现上面使用，并且只对返回值为void的方法生效，通过METADATA告诉客户端这个方法不需要等待回复，比如审计日志、
+     * 监控数据的上报。客户端把请求交给Channel以后马上返回，服务器执行完以后也不写回复，执行失败只会在服务器端打印日志
+     *
+     * @return 当前方法是否是单向调用
+     */
+    boolean oneWay() default false;
+
+    /**
+     * 只在客户端接口上面使用，并且只对服务器端声明了idempotent的方法生效。第一个请求在指定的时间内没有回复的时候，在另外一个
+     * RpcServer上面再发送一次，先到的结果生效，另一个请求会被取消，用来避免某一个RpcServer变慢(比如GC)的时候拖慢整体的p99
+     *
+     * @return 是否开启对冲请求
+     */
+    boolean hedge() default false;
+
+    /**
+     * 配合hedge一起使用，第一个请求发送出去以后等待多长时间再发送第二个，小于等于0表示使用当前方法最近的p95
+     *
+     * @return 返回等待的时间，单位是毫秒
+     */
+    long hedgeDelayMillis() default 0;
+
+    /**
+     * 只在客户端接口上面使用，同一时间参数完全一样(序列化以后的字节相同)的调用只发送一个请求，所有的调用者拿到同一个结果，
+     * 适合查询热点数据的方法，参考SingleFlight。注意：返回的是同一个对象，调用者不要修改它，流式方法不支持
+     *
+     * @return 是否合并相同的并发调用
+     */
+    boolean coalesce() default false;
+
+    /**
+     * 只在客户端接口上面使用，并且只对服务器端声明了idempotent的方法生效，大于0的时候在客户端缓存结果，参数一样(序列化以后的字节
+     * 相同)的调用在过期之前直接返回缓存的结果，不需要再发送请求，适合变化很慢的配置数据，参考ResultCache。
+     * 注意：返回的是同一个对象，调用者不要修改它，数据变化的时候通过ClientHelper.getResultCache拿到缓存以后invalidate
+     *
+     * @return 缓存的过期时间，单位是毫秒，小于等于0表示不缓存
+     */
+    long cacheTtlMillis() default 0;
+
+    /**
+     * 配合cacheTtlMillis一起使用，最多缓存多少个不同参数的结果，超过以后按照W-TinyLFU淘汰
+     *
+     * @return 缓存的最大个数
+     */
+    int cacheMaxSize() default 10000;
+
+    /**
+     * 只在客户端接口上面使用，调用的时候并行的发送给当前服务的每一个RpcServer(每一个地址一个Channel)，所有的结果通过reducer
+     * 合并成一个返回，总的耗时是最慢的那一个RpcServer，而不是所有的加起来。适合通知所有的RpcServer清理缓存，或者分片查询以后
+     * 再合并的场景。每一个RpcServer只发送一次，不会重试，流式方法不支持
+     *
+     * @return 是否广播给所有的RpcServer
+     */
+    boolean broadcast() default false;
+
+    /**
+     * 配合broadcast一起使用，合并结果的方式，默认返回第一个不为null的结果
+     *
+     * @return Reducer的实现类，需要有无参的构造函数
+     */
+    @SuppressWarnings("rawtypes")
+    Class<? extends Reducer> reducer() default Reducer.First.class;
+
+    /**
+     * 配合broadcast一起使用，默认有一个RpcServer失败或者超时整个调用就失败，设置为true以后只合并已经成功的结果，
+     * 只有所有的RpcServer都失败的时候才失败
+     *
+     * @return 是否允许只返回部分RpcServer的结果
+     */
+    boolean partialResult() default false;
 }
@@ -1,5 +1,6 @@
 package com.lee.rpc.annotation;
 
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.helper.Weight;
 
 import java.lang.annotation.*;
@@ -63,4 +64,20 @@ public @interface RpcServer {
      * @return 返回工作组数量，也就是IO线程的数量
      */
     int works() default 8;
+
+    /**
+     * 服务器端能够接受的最大帧大小，只有在协商出来的协议版本大于等于V2的时候才生效，V1的bodyLength只有2个字节
+     * 如果同一个serviceId在多个地方发布，那么以最大的那个为准
+     *
+     * @return 返回最大帧大小，单位是字节
+     */
+    int maxFrameLength() default ProtocolHelper.DEFAULT_MAX_FRAME_LENGTH;
+
+    /**
+     * 协商出来的协议版本大于等于V3的时候，同一个Channel上面的多个回复最多合并多少个到一个BATCH帧里面，小于等于1表示不合并
+     * 服务器端不会为了合并而等待，IO线程处理的时候已经完成了多少个就合并多少个
+     *
+     * @return 返回一个BATCH最多包含的回复个数
+     */
+    int batchSize() default 64;
 }
@@ -1,5 +1,6 @@
 package com.lee.rpc.decoder;
 
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.helper.client.ClientProxy;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -9,7 +10,6 @@ import io.netty.channel.ChannelPromise;
 import io.netty.handler.timeout.IdleStateEvent;
 import lombok.extern.slf4j.Slf4j;
 
-import static com.lee.rpc.util.Constant.EMPTY_VALUE;
 import static com.lee.rpc.util.Constant.HEARTBEAT;
 
 /**
@@ -52,13 +52,16 @@ public class ClientTimeOutHandler extends ChannelDuplexHandler {
     }
 
     private void sendHeartbeat(ChannelHandlerContext ctx) {
-        heartbeat.clear()
-                .writeInt(clientProxy.getServiceId())
-                .writeLong(HEARTBEAT)
-                .writeByte(HEARTBEAT)
-                .writeByte(HEARTBEAT)
-                .writeShort(EMPTY_VALUE);
-        ctx.writeAndFlush(heartbeat).addListener(
+        //协议版本还没有协商完成的时候不能够发送心跳，因为服务器可能已经切换到了新的协议版本
+        if (!ProtocolHelper.isNegotiated(ctx.channel())) {
+            return;
+        }
+
+        ProtocolHelper.writeHeader(
+                heartbeat.clear(), ProtocolHelper.getProtocolVersion(ctx.channel()),
+                clientProxy.getServiceId(), HEARTBEAT, HEARTBEAT, HEARTBEAT
+        );
+        ctx.writeAndFlush(heartbeat.retain()).addListener(
                 future -> {
                     if (!future.isSuccess()) {
                         if (sendHeartbeatNumber >= 3) {
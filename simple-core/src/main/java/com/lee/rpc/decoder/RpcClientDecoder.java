@@ -4,8 +4,13 @@ import com.lee.rpc.RpcException;
 import com.lee.rpc.RpcExceptionSerializer;
 import com.lee.rpc.RpcMetadataSerializer;
 import com.lee.rpc.RpcMethodUnit;
+import com.lee.rpc.RpcService;
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.helper.RpcHelper;
+import com.lee.rpc.helper.RpcRequestBatcher;
 import com.lee.rpc.helper.Weight;
+import com.lee.rpc.helper.client.ClientProxy;
+import com.lee.rpc.helper.client.PendingRequests;
 import com.lee.rpc.helper.client.RpcServiceClientUnit;
 import com.lee.rpc.helper.recycler.ByteBufInputStreamRecycler;
 import com.lee.rpc.util.stream.ByteBufInputStream;
@@ -14,22 +19,24 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
-import com.lee.rpc.helper.client.ClientProxy;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
+import static com.lee.rpc.helper.ProtocolHelper.*;
+import static com.lee.rpc.helper.RpcHelper.PROTOCOL;
 import static com.lee.rpc.helper.client.ClientHelper.CLIENT_GENERATOR;
-import static com.lee.rpc.helper.client.ClientHelper.setValue;
 import static com.lee.rpc.util.Constant.*;
 import static com.lee.rpc.util.exception.ErrorType.CLIENT_SERIALIZER_ERROR;
 
 /**
  * 客户端可以访问多个不同的RpcServer，所以这个地方需要根据serviceId来获取到底是哪个方法的，不像服务器端那样，只处理一种类型的RpcServer
  * <p>
- * 4          8          1         1     2            N bytes
+ * 4          8          1         1     2/4          N bytes
  * serviceId  requestId  methodId  type  bodyLength   bodyContext
  * <p>
+ * bodyLength的大小由当前Channel协商出来的协议版本决定，参考ProtocolHelper
+ * <p>
  *
  * @author l46li
  */
@@ -38,60 +45,90 @@ public class RpcClientDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final RpcExceptionSerializer RPC_EXCEPTION_SERIALIZER = new RpcExceptionSerializer();
     private static final RpcMetadataSerializer SERIALIZER = new RpcMetadataSerializer();
+    protected final int protocolVersion;
     protected ClientProxy clientProxy;
     protected InetSocketAddress address;
 
+    /**
+     * 当前Channel上面还在等待回复的请求，协商完成以后替换的decoder也是同一个Channel，所以都是第一次解码的时候获取
+     */
+    protected PendingRequests pending;
+
     public RpcClientDecoder() {
-        this(1048576, true);
+        this(V1_MAX_FRAME_LENGTH, true);
     }
 
     public RpcClientDecoder(InetSocketAddress address) {
-        this(1048576, true);
+        this(V1_MAX_FRAME_LENGTH, true);
         this.address = address;
     }
 
     public RpcClientDecoder(InetSocketAddress address, ClientProxy clientProxy) {
-        this(1048576, true);
+        this(V1_MAX_FRAME_LENGTH, true);
         this.address = address;
         this.clientProxy = clientProxy;
     }
 
     public RpcClientDecoder(int maxFrameLength, boolean failFast) {
-        super(maxFrameLength, 14, 2, 0, 0, failFast);
+        super(maxFrameLength, LENGTH_FIELD_OFFSET, lengthFieldLength(PROTOCOL_V1), 0, 0, failFast);
+        this.protocolVersion = PROTOCOL_V1;
+    }
+
+    /**
+     * METADATA协商完成以后，javassist生成的decoder使用这个构造函数
+     *
+     * @param maxFrameLength  最大帧大小
+     * @param protocolVersion 协商出来的协议版本
+     */
+    public RpcClientDecoder(int maxFrameLength, int protocolVersion) {
+        super(maxFrameLength, LENGTH_FIELD_OFFSET, lengthFieldLength(protocolVersion), 0, 0, true);
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * 每一个Channel建立以后都需要发送METADATA请求，methodId携带的是客户端支持的最高协议版本，在服务器返回之前，这个Channel都是
+     * 使用V1，并且不会用来发送请求，参考ProtocolHelper.isNegotiated
+     */
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ByteBuf metadata = ctx.alloc().buffer(headerLength(PROTOCOL_V1));
+        writeHeader(metadata, PROTOCOL_V1, clientProxy.getServiceId(), METADATA, PROTOCOL_VERSION, METADATA);
+        ctx.writeAndFlush(metadata);
+        super.channelActive(ctx);
     }
 
     @Override
     protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
         Object decode = super.decode(ctx, in);
         if (decode != null) {
+            if (pending == null) {
+                pending = PendingRequests.of(ctx.channel());
+            }
             ByteBuf buffer = (ByteBuf) decode;
             try {
                 int serviceId = buffer.readInt();
                 long requestId = buffer.readLong();
                 byte methodId = buffer.readByte();
                 byte typeId = buffer.readByte();
-                short bodyLength = buffer.readShort();
+                int bodyLength = readBodyLength(buffer, protocolVersion);
 
                 switch (typeId) {
                     case NORMAL:
-                        setValue(requestId,
-                                unmarshallNormal(
-                                        buffer, getRpcMethodUnit(serviceId, methodId), bodyLength, requestId
-                                )
-                        );
-                        break;
                     case EMPTY_TYPE:
-                        setValue(requestId, null);
-                        break;
                     case ABNORMAL:
-                        setValue(requestId, unmarshallAbnormal(buffer, bodyLength, requestId));
+                    case STREAM:
+                        handleResponse(serviceId, requestId, methodId, typeId, buffer, bodyLength);
+                        break;
+                    case BATCH:
+                        //BATCH帧的requestId就是entry的个数
+                        handleBatchResponse(serviceId, (int) requestId, buffer);
                         break;
                     case HEARTBEAT:
                         log.info("Received heartbeat pong message from server {}", serviceId);
                         break;
                     case METADATA:
                         //注意这个地方只是给local协议使用的，如果是zookeeper的话，那么是不走这个逻辑的
-                        fillChannel(ctx, buffer, serviceId, bodyLength);
+                        fillChannel(ctx, buffer, serviceId);
                         break;
                     default:
                         throw new RpcException("Can not process typeId " + typeId);
@@ -103,20 +140,82 @@ public class RpcClientDecoder extends LengthFieldBasedFrameDecoder {
         return null;
     }
 
-    private void fillChannel(ChannelHandlerContext ctx, ByteBuf buffer, int serviceId, short bodyLength) {
-        handleMetadataRequest(buffer, bodyLength);
+    private void handleResponse(int serviceId, long requestId, byte methodId, byte typeId,
+                                ByteBuf buffer, int bodyLength) {
+        switch (typeId) {
+            case NORMAL:
+                if (clientProxy.isDeserializeOnCaller()) {
+                    //IO线程只负责分帧，body交给调用线程去反序列化，参考ClientProxy.deserializeResult
+                    pending.complete(requestId, buffer.retainedSlice(buffer.readerIndex(), bodyLength));
+                } else {
+                    pending.complete(requestId,
+                            unmarshallNormal(
+                                    buffer, getRpcMethodUnit(serviceId, methodId), bodyLength, requestId
+                            )
+                    );
+                }
+                break;
+            case STREAM:
+                //流式方法的一个元素，结束的时候服务器会再发送一个EMPTY_TYPE或者ABNORMAL的帧
+                if (clientProxy.isDeserializeOnCaller()) {
+                    pending.offer(requestId, buffer.retainedSlice(buffer.readerIndex(), bodyLength));
+                } else {
+                    pending.offer(requestId,
+                            unmarshallNormal(
+                                    buffer, getRpcMethodUnit(serviceId, methodId), bodyLength, requestId
+                            )
+                    );
+                }
+                break;
+            case EMPTY_TYPE:
+                pending.complete(requestId, null);
+                break;
+            case ABNORMAL:
+                pending.complete(requestId, unmarshallAbnormal(buffer, bodyLength, requestId));
+                break;
+            default:
+                throw new RpcException("Can not process typeId " + typeId);
+        }
+    }
+
+    private void handleBatchResponse(int serviceId, int count, ByteBuf buffer) {
+        for (int i = 0; i < count; i++) {
+            long requestId = buffer.readLong();
+            byte methodId = buffer.readByte();
+            byte typeId = buffer.readByte();
+            int bodyLength = buffer.readInt();
+            try {
+                handleResponse(serviceId, requestId, methodId, typeId, buffer.readSlice(bodyLength), bodyLength);
+            } catch (RpcException e) {
+                //反序列化失败的时候已经通知了调用者，不影响同一个BATCH里面的其他回复
+                log.warn("Can not process response {} in batch", requestId, e);
+            }
+        }
+    }
+
+    private void fillChannel(ChannelHandlerContext ctx, ByteBuf buffer, int serviceId) {
+        //只有第一个Channel需要按照weight补齐剩下的Channel，后面建立的Channel只需要协商协议版本
+        boolean isReady = RpcHelper.isClientReady(serviceId);
+        RpcService rpcService = handleMetadataRequest(buffer);
+        int version = ProtocolHelper.negotiate(rpcService.getProtocolVersion());
 
         ctx.pipeline().replace(
-                "decoder", "decoder",
-                CLIENT_GENERATOR.createDecoder(address, serviceId, clientProxy)
+                this, "decoder",
+                CLIENT_GENERATOR.createDecoder(address, serviceId, clientProxy, version)
         );
+        ctx.channel().attr(PROTOCOL).set(version);
+        RpcRequestBatcher.install(ctx.channel(), clientProxy.getBatchSize(), clientProxy.getBatchDelayMicros());
+        //协商完成以后这个Channel就可以用来发送请求了，唤醒等待可用Channel的调用者
+        clientProxy.channelAvailable();
 
-        RpcServiceClientUnit rpcClientUnit = RpcHelper.getRpcClientUnit(serviceId);
-        Weight weight = rpcClientUnit.getWeight(address);
+        if (!isReady) {
+            RpcServiceClientUnit rpcClientUnit = RpcHelper.getRpcClientUnit(serviceId);
+            Weight weight = rpcClientUnit.getWeight(address);
 
-        //这个地方按照weight,补齐剩下的没有创建的Channel
-        for (int i = 1; i < weight.value(); i++) {
-            clientProxy.createChannel(address);
+            //这个地方按照weight,补齐剩下的没有创建的Channel
+            for (int i = 1; i < weight.value(); i++) {
+                clientProxy.createChannel(address);
+            }
         }
     }
 
@@ -131,9 +230,11 @@ public class RpcClientDecoder extends LengthFieldBasedFrameDecoder {
         return RpcHelper.getRpcClientUnit(serviceId).getMethodUnit(methodId);
     }
 
-    private void handleMetadataRequest(ByteBuf buffer, short bodyLength) {
+    private RpcService handleMetadataRequest(ByteBuf buffer) {
         try (ByteBufInputStream in = ByteBufInputStreamRecycler.newInstance(buffer)) {
-            RpcHelper.registerClient(address, SERIALIZER.deserialize(in));
+            RpcService rpcService = SERIALIZER.deserialize(in);
+            RpcHelper.registerClient(address, rpcService);
+            return rpcService;
         } catch (IOException e) {
             //metadata 理论上面也不会出现错误的情况，因为是框架部分的序列化和饭序列化
             throw new RpcException("Can not read parameter from current com.lee.rpc buffer", e);
@@ -142,28 +243,39 @@ public class RpcClientDecoder extends LengthFieldBasedFrameDecoder {
 
     private Object unmarshallNormal(ByteBuf buffer,
                                     RpcMethodUnit methodUnit,
-                                    short bodyLength, long requestId) {
+                                    int bodyLength, long requestId) {
         try (ByteBufInputStream in = ByteBufInputStreamRecycler.newInstance(buffer)) {
             return methodUnit.deserializeToReturnType(in);
         } catch (Exception e) {
             //如果自定义反序列化错误，那么会发什么错误，这个时候，服务器端已经处理完成了，这个地方可以作为成功来处理
             RpcException exception = new RpcException().withStatus(CLIENT_SERIALIZER_ERROR).withError(e.getMessage());
-            setValue(requestId, exception);
+            pending.complete(requestId, exception);
             throw exception;
         }
     }
 
-    private RpcException unmarshallAbnormal(ByteBuf buffer, short bodyLength, long requestId) {
+    private RpcException unmarshallAbnormal(ByteBuf buffer, int bodyLength, long requestId) {
         try (ByteBufInputStream in = ByteBufInputStreamRecycler.newInstance(buffer)) {
             return RPC_EXCEPTION_SERIALIZER.deserialize(in);
         } catch (Exception e) {
             //理论上不会发生，错误代码是框架部分已经写好的，不存在其他情况
             RpcException exception = new RpcException().withStatus(CLIENT_SERIALIZER_ERROR).withError(e.getMessage());
-            setValue(requestId, exception);
+            pending.complete(requestId, exception);
             throw exception;
         }
     }
 
+    /**
+     * ChannelOutboundBuffer降到低水位线以下的时候唤醒等待可用Channel的调用者，参考ChannelAvailability
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            clientProxy.channelAvailable();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.warn("Unexpected exception, ignore current response", cause);
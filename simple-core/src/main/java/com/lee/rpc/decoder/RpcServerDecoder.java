@@ -4,10 +4,14 @@ import com.lee.rpc.RpcException;
 import com.lee.rpc.RpcMetadataSerializer;
 import com.lee.rpc.RpcMethodUnit;
 import com.lee.rpc.RpcRequest;
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.helper.RpcHelper;
+import com.lee.rpc.helper.RpcRequestBatcher;
+import com.lee.rpc.helper.StreamHelper;
 import com.lee.rpc.helper.recycler.ByteBufInputStreamRecycler;
 import com.lee.rpc.helper.recycler.ByteBufOutputStreamRecycler;
 import com.lee.rpc.helper.recycler.RpcRequestRecycler;
+import com.lee.rpc.helper.server.InflightRequests;
 import com.lee.rpc.helper.server.RpcServiceServerUnit;
 import com.lee.rpc.util.stream.ByteBufInputStream;
 import com.lee.rpc.util.stream.ByteBufOutputStream;
@@ -17,6 +21,9 @@ import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
 
+import static com.lee.rpc.helper.ProtocolHelper.*;
+import static com.lee.rpc.helper.RpcHelper.PROTOCOL;
+import static com.lee.rpc.helper.server.ServerHelper.SERVER_GENERATOR;
 import static com.lee.rpc.util.Constant.*;
 import static com.lee.rpc.util.exception.ErrorType.*;
 
@@ -27,8 +34,12 @@ import static com.lee.rpc.util.exception.ErrorType.*;
  * <p>
  * <p>
  * 实际情况如下:
- * 4         8           1          1      2            N bytes
+ * 4         8           1          1      2/4          N bytes
  * serverId  requestId   methodId   type   bodyLength   bodyContent
+ * <p>
+ * 每一个Channel开始都是V1，在处理METADATA请求的时候协商版本，协商出来的版本比V1高的时候会替换掉当前的decoder
+ * V4开始请求会携带客户端剩余的超时时间，换算成本地的deadline放到RpcRequest里面，执行之前已经过期的请求直接丢掉
+ * V6开始请求的type上面可能带有ONE_WAY_FLAG，这样的请求执行完以后不写回复
  *
  * @author l46li
  */
@@ -37,12 +48,31 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final RpcMetadataSerializer RPC_METADATA_SERIALIZER = new RpcMetadataSerializer();
 
+    protected final int protocolVersion;
+
+    /**
+     * 协商完成以后才会创建，协议版本不支持CANCEL的时候一直是null
+     */
+    private InflightRequests inflight;
+
     public RpcServerDecoder() {
-        this(1048576, true);
+        this(V1_MAX_FRAME_LENGTH, true);
     }
 
     public RpcServerDecoder(int maxFrameLength, boolean failFast) {
-        super(maxFrameLength, 14, 2, 0, 0, failFast);
+        super(maxFrameLength, LENGTH_FIELD_OFFSET, lengthFieldLength(PROTOCOL_V1), 0, 0, failFast);
+        this.protocolVersion = PROTOCOL_V1;
+    }
+
+    /**
+     * METADATA协商完成以后，使用协商出来的版本重新创建一个decoder替换掉当前的decoder
+     *
+     * @param maxFrameLength  最大帧大小
+     * @param protocolVersion 协商出来的协议版本
+     */
+    public RpcServerDecoder(int maxFrameLength, int protocolVersion) {
+        super(maxFrameLength, LENGTH_FIELD_OFFSET, lengthFieldLength(protocolVersion), 0, 0, true);
+        this.protocolVersion = protocolVersion;
     }
 
     @Override
@@ -55,28 +85,21 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
                 final long requestId = byteBuf.readLong();
                 final byte methodId = byteBuf.readByte();
                 final byte typeId = byteBuf.readByte();
-                final short bodyLength = byteBuf.readShort();
+                //bodyLength已经被LengthFieldBasedFrameDecoder处理过了，这里只需要跳过
+                readBodyLength(byteBuf, protocolVersion);
 
-                switch (typeId) {
+                switch (requestType(typeId)) {
                     case OBJECT:
-                        RpcMethodUnit methodUnit = getRpcMethodUnit(serviceId, methodId);
-                        RpcRequest request = RpcRequestRecycler.newInstance(serviceId, requestId, methodId);
-                        methodUnit.getExecutor().execute(
-                                request.channel(ctx.channel())
-                                        .withMethodUnit(methodUnit)
-                                        .type(typeId)
-                                        .body(unmarshall(byteBuf, bodyLength, request))
-                        );
-                        break;
                     case EMPTY_TYPE:
-                        methodUnit = getRpcMethodUnit(serviceId, methodId);
-                        request = RpcRequestRecycler.newInstance(serviceId, requestId, methodId);
-                        methodUnit.getExecutor().execute(
-                                request.channel(ctx.channel())
-                                        .withMethodUnit(methodUnit)
-                                        .type(typeId)
-                                        .body(EMPTY_VALUE)
-                        );
+                        long deadline = readTimeout(byteBuf, protocolVersion);
+                        dispatch(ctx, serviceId, requestId, methodId, typeId, deadline, byteBuf);
+                        break;
+                    case BATCH:
+                        //BATCH帧的requestId就是entry的个数
+                        dispatchBatch(ctx, serviceId, (int) requestId, byteBuf);
+                        break;
+                    case CANCEL:
+                        cancel(ctx, requestId);
                         break;
                     case HEARTBEAT:
                         ctx.executor().execute(() -> ctx.writeAndFlush(
@@ -86,11 +109,10 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
                         );
                         break;
                     case METADATA:
-                        ctx.executor().execute(() -> ctx.writeAndFlush(
-                                handleMetadataRequest(
-                                        ctx, requestId, methodId, typeId, serviceId
-                                )
-                        ));
+                        //返回的metadata一定是V1的格式，因为这个时候客户端还不知道协商的结果
+                        ByteBuf metadata = handleMetadataRequest(ctx, requestId, methodId, typeId, serviceId);
+                        negotiate(ctx, serviceId, methodId);
+                        ctx.executor().execute(() -> ctx.channel().writeAndFlush(metadata));
                         break;
                     default:
                         throw new RpcException()
@@ -111,6 +133,90 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
         return null;
     }
 
+    private void dispatch(ChannelHandlerContext ctx, int serviceId, long requestId, byte methodId, byte rawTypeId,
+                          long deadline, ByteBuf body) {
+        RpcMethodUnit methodUnit = getRpcMethodUnit(serviceId, methodId);
+        byte typeId = requestType(rawTypeId);
+        RpcRequest request = RpcRequestRecycler.newInstance(serviceId, requestId, methodId)
+                .channel(ctx.channel())
+                .withMethodUnit(methodUnit)
+                .deadline(deadline)
+                .oneWay(typeId != rawTypeId)
+                .type(typeId);
+        switch (typeId) {
+            case OBJECT:
+                if (methodUnit.isDeserializeOnWorker()) {
+                    //IO线程只负责分帧，反序列化交给executor的线程，RpcRequest回收的时候会释放掉retain的部分
+                    //注意：BATCH里面的body是readSlice出来的，已经读过了timeout，这种slice上面无参数的retainedSlice()
+                    //会忽略readerIndex(Netty 4.1.56)，所以这里显式的指定位置和长度
+                    request.payload(body.retainedSlice(body.readerIndex(), body.readableBytes()));
+                } else {
+                    request.body(unmarshall(body, request));
+                }
+                break;
+            case EMPTY_TYPE:
+                request.body(EMPTY_VALUE);
+                break;
+            default:
+                throw new RpcException()
+                        .withStatus(NOT_SUPPORT_TYPE)
+                        .withError("Can not support type " + typeId)
+                        .withRequest(request);
+        }
+
+        InflightRequests inflight = getInflight(ctx);
+        if (inflight != null) {
+            inflight.register(request);
+        }
+        methodUnit.getExecutor().execute(request);
+    }
+
+    /**
+     * 去掉请求type上面的ONE_WAY_FLAG，只有OBJECT和EMPTY_TYPE才可能带有这个标记，协商出来的版本不支持的时候原样返回
+     */
+    private byte requestType(byte typeId) {
+        if (isOneWaySupported(protocolVersion)
+                && (typeId == (OBJECT | ONE_WAY_FLAG) || typeId == (EMPTY_TYPE | ONE_WAY_FLAG))) {
+            return (byte) (typeId & ~ONE_WAY_FLAG);
+        }
+        return typeId;
+    }
+
+    /**
+     * 还在队列里面的请求会被标记，执行器取出来的时候直接丢掉，正在执行的流式方法会在发送下一个元素之前停下来
+     */
+    private void cancel(ChannelHandlerContext ctx, long requestId) {
+        InflightRequests inflight = getInflight(ctx);
+        if (inflight != null) {
+            inflight.cancel(requestId);
+        }
+    }
+
+    private InflightRequests getInflight(ChannelHandlerContext ctx) {
+        if (inflight == null) {
+            inflight = InflightRequests.of(ctx.channel());
+        }
+        return inflight;
+    }
+
+    /**
+     * 每一个entry都按照单独的请求来分发到自己的RpcMethodUnit的executor里面去，某一个entry出错不影响其他的entry
+     */
+    private void dispatchBatch(ChannelHandlerContext ctx, int serviceId, int count, ByteBuf byteBuf) {
+        for (int i = 0; i < count; i++) {
+            long requestId = byteBuf.readLong();
+            byte methodId = byteBuf.readByte();
+            byte typeId = byteBuf.readByte();
+            ByteBuf body = byteBuf.readSlice(byteBuf.readInt());
+            try {
+                long deadline = readTimeout(body, protocolVersion);
+                dispatch(ctx, serviceId, requestId, methodId, typeId, deadline, body);
+            } catch (RpcException e) {
+                writeException(ctx, e, e);
+            }
+        }
+    }
+
     /**
      * 使用 javassist 重写了该方法，主要是为了不需要在去RpcHelper里面去获取RpcMethodUnit，而是直接生成一个子类
      * 然后子类把RpcMethodUnit作为字段存放，根据传递进来的methodId，直接获取到对应的RpcMethodUnit字段
@@ -125,15 +231,28 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
     private Object handleHeartbeatRequest(ChannelHandlerContext ctx,
                                           long requestId, byte methodId, byte typeId, int serviceId) {
         ByteBuf byteBuf = ctx.alloc().ioBuffer();
-        byteBuf.writeInt(serviceId);
-        byteBuf.writeLong(requestId);
-        byteBuf.writeByte(methodId);
-        byteBuf.writeByte(typeId);
-        byteBuf.writeShort(EMPTY_VALUE);
+        writeHeader(byteBuf, protocolVersion, serviceId, requestId, methodId, typeId);
         return byteBuf;
     }
 
-    private Object handleMetadataRequest(ChannelHandlerContext ctx,
+    /**
+     * 老的客户端在METADATA请求里面携带的methodId就是METADATA，新的客户端携带的是自己支持的最高协议版本
+     * 协商完成以后，后续的所有帧都按照协商出来的版本来解析，所以需要在当前decode里面马上替换掉decoder
+     */
+    private void negotiate(ChannelHandlerContext ctx, int serviceId, byte methodId) {
+        int version = methodId == METADATA ? PROTOCOL_V1 : ProtocolHelper.negotiate(methodId);
+        RpcServiceServerUnit rpcServiceUnit = RpcHelper.getRpcServiceUnit(serviceId);
+        ctx.channel().attr(PROTOCOL).set(version);
+        RpcRequestBatcher.install(ctx.channel(), rpcServiceUnit.getBatchSize(), 0);
+        InflightRequests.install(ctx.channel(), version);
+        if (version > protocolVersion) {
+            ctx.pipeline().replace(this, "decoder",
+                    SERVER_GENERATOR.createRpcServerDecoder(rpcServiceUnit.getMaxFrameLength(), version)
+            );
+        }
+    }
+
+    private ByteBuf handleMetadataRequest(ChannelHandlerContext ctx,
                                          long requestId, byte methodId, byte typeId, int serviceId) {
         RpcServiceServerUnit rpcServiceUnit = RpcHelper.getRpcServiceUnit(serviceId);
         if (rpcServiceUnit == null) {
@@ -144,12 +263,7 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
         }
 
         ByteBuf byteBuf = ctx.alloc().ioBuffer();
-        byteBuf.writeInt(serviceId);
-        byteBuf.writeLong(requestId);
-        byteBuf.writeByte(methodId);
-        byteBuf.writeByte(typeId);
-
-        byteBuf.writeShort(EMPTY_VALUE);
+        writeHeader(byteBuf, PROTOCOL_V1, serviceId, requestId, methodId, typeId);
         try (ByteBufOutputStream out = ByteBufOutputStreamRecycler.newInstance(byteBuf)) {
             RPC_METADATA_SERIALIZER.serialize(rpcServiceUnit.getRpcService(), out);
         } catch (Exception e) {
@@ -159,23 +273,11 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
                     .withStatus(SERIALIZER_ERROR)
                     .withRequest(RpcRequestRecycler.newInstance(serviceId, requestId, methodId));
         }
-        return adjustLength(byteBuf);
-    }
-
-    private ByteBuf adjustLength(ByteBuf byteBuf) {
-        byteBuf.markReaderIndex();
-        byteBuf.readerIndex(16);
-        int bodyLength = byteBuf.readableBytes();
-        byteBuf.resetReaderIndex();
-
-        byteBuf.markWriterIndex();
-        byteBuf.writerIndex(14);
-        byteBuf.writeShort(bodyLength);
-        byteBuf.resetWriterIndex();
+        adjustLength(byteBuf, 0, PROTOCOL_V1);
         return byteBuf;
     }
 
-    private Object unmarshall(ByteBuf byteBuf, short bodyLength, RpcRequest request) {
+    private Object unmarshall(ByteBuf byteBuf, RpcRequest request) {
         try (ByteBufInputStream in = ByteBufInputStreamRecycler.newInstance(byteBuf)) {
             return request.getMethodUnit().deserializeToParameter(in);
         } catch (Exception e) {
@@ -186,23 +288,42 @@ public class RpcServerDecoder extends LengthFieldBasedFrameDecoder {
         }
     }
 
+    /**
+     * 唤醒因为Channel不可写而暂停的流式方法，参考StreamHelper.awaitWritable
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            StreamHelper.writabilityChanged(ctx.channel());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         //所有decoder的错误，包装的都是DecoderException,所以在decoder阶段出现的错误我们需要获取内部的具体错误信息
         Throwable rootCause = cause.getCause();
 
         if (rootCause instanceof RpcException) {
-            RpcException rpcException = (RpcException) rootCause;
-            if (rpcException.getRpcRequest() != null) {
-                ctx.channel().writeAndFlush(
-                        rpcException.getRpcRequest().type(ABNORMAL).body(rpcException)
-                );
-            } else {
-                log.error("Exception happened", cause);
-            }
+            writeException(ctx, (RpcException) rootCause, cause);
             return;
         }
 
         super.exceptionCaught(ctx, cause);
     }
+
+    private void writeException(ChannelHandlerContext ctx, RpcException rpcException, Throwable cause) {
+        RpcRequest request = rpcException.getRpcRequest();
+        if (request != null && request.isOneWay()) {
+            //客户端没有在等待回复，这个时候还没有注册到InflightRequests里面，直接回收就可以了
+            log.warn("One way request {} failed", request.getRequestId(), cause);
+            RpcRequestRecycler.recycle(request);
+        } else if (request != null) {
+            ctx.channel().writeAndFlush(
+                    rpcException.getRpcRequest().type(ABNORMAL).body(rpcException)
+            );
+        } else {
+            log.error("Exception happened", cause);
+        }
+    }
 }
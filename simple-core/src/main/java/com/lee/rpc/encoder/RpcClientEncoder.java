@@ -2,56 +2,84 @@ package com.lee.rpc.encoder;
 
 import com.lee.rpc.RpcException;
 import com.lee.rpc.RpcRequest;
-import com.lee.rpc.helper.client.ClientHelper;
+import com.lee.rpc.RpcRequestBatch;
+import com.lee.rpc.helper.ProtocolHelper;
+import com.lee.rpc.helper.client.ClientHelper.Task;
+import com.lee.rpc.helper.client.PendingRequests;
 import com.lee.rpc.helper.recycler.ByteBufOutputStreamRecycler;
+import com.lee.rpc.helper.recycler.RpcRequestBatchRecycler;
 import com.lee.rpc.helper.recycler.RpcRequestRecycler;
 import com.lee.rpc.util.stream.ByteBufOutputStream;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
-import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.List;
+
+import static com.lee.rpc.helper.ProtocolHelper.*;
 import static com.lee.rpc.util.Constant.*;
 import static com.lee.rpc.util.exception.ErrorType.CLIENT_SERIALIZER_ERROR;
 
 /**
- * 4          8           1         1     2              xxx bytes
+ * 4          8           1         1     2/4            xxx bytes
  * serviceId  requestId   methodId  type  bodyLength     bodyContent
+ * <p>
+ * bodyLength的大小由当前Channel协商出来的协议版本决定，RpcRequestBatch会被编码成BATCH帧，V4开始协议头后面跟着剩余的超时时间，
+ * 参考ProtocolHelper
  *
  * @author Administrator
  */
 @Slf4j
-public class RpcClientEncoder extends MessageToByteEncoder<RpcRequest> {
+public class RpcClientEncoder extends MessageToByteEncoder<Object> {
+
+    /**
+     * 每一个Channel都有自己的encoder，所以第一次编码的时候获取一次就可以了
+     */
+    private PendingRequests pending;
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) {
+        //心跳和METADATA直接就是ByteBuf，不需要经过encoder
+        return msg instanceof RpcRequest || msg instanceof RpcRequestBatch;
+    }
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, RpcRequest request, ByteBuf out) {
+    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) {
+        if (pending == null) {
+            pending = PendingRequests.of(ctx.channel());
+        }
+        int version = ProtocolHelper.getProtocolVersion(ctx.channel());
+        if (msg instanceof RpcRequestBatch) {
+            encodeBatch((RpcRequestBatch) msg, out, version);
+        } else {
+            encodeRequest((RpcRequest) msg, out, version);
+        }
+    }
+
+    private void encodeRequest(RpcRequest request, ByteBuf out, int version) {
         try {
-            int serviceId = request.getServiceId();
-            byte methodId = request.getMethodId();
+            if (!register(request)) {
+                return;
+            }
+            int headerIndex = out.writerIndex();
             byte typeId = request.getTypeId();
 
-            out.writeInt(serviceId);
-            out.writeLong(request.getRequestId());
-            out.writeByte(methodId);
-            out.writeByte(typeId);
-            out.writeShort(EMPTY_VALUE);
+            writeHeader(out, version, request.getServiceId(), request.getRequestId(), request.getMethodId(),
+                    wireType(request));
+            writeTimeout(out, version, request.getDeadline());
 
             switch (typeId) {
                 case OBJECT:
-                    processRpcRequest(request, out);
-
-                    out.markReaderIndex();
-                    out.readerIndex(16);
-                    int bodyLength = out.readableBytes();
-                    out.resetReaderIndex();
-
-                    out.markWriterIndex();
-                    out.writerIndex(14);
-                    out.writeShort(bodyLength);
-                    out.resetWriterIndex();
+                    if (processRpcRequest(request, out)) {
+                        adjustLength(request, out, headerIndex, version);
+                    } else {
+                        out.writerIndex(headerIndex);
+                    }
                     break;
                 case EMPTY_TYPE:
+                    //V4的timeout算在bodyLength里面
+                    adjustLength(request, out, headerIndex, version);
                     break;
                 default:
                     throw new RpcException("Can not support type " + typeId);
@@ -62,18 +90,130 @@ public class RpcClientEncoder extends MessageToByteEncoder<RpcRequest> {
         }
     }
 
-    private void processRpcRequest(RpcRequest request, ByteBuf buffer) {
+    /**
+     * 序列化失败的entry直接丢掉，不影响同一个BATCH里面的其他请求，body超过BATCH_BODY_LIMIT以后开始一个新的BATCH帧
+     */
+    private void encodeBatch(RpcRequestBatch batch, ByteBuf out, int version) {
+        List<RpcRequest> requests = batch.getRequests();
+        int index = 0;
+        try {
+            while (index < requests.size()) {
+                int headerIndex = out.writerIndex();
+                int count = 0;
+                writeHeader(out, version, batch.getServiceId(), EMPTY_VALUE, EMPTY_VALUE, BATCH);
+
+                int bodyIndex = out.writerIndex();
+                while (index < requests.size() && out.writerIndex() - bodyIndex < BATCH_BODY_LIMIT) {
+                    RpcRequest request = requests.get(index++);
+                    try {
+                        if (register(request) && encodeEntry(request, out, version)) {
+                            count++;
+                        }
+                    } finally {
+                        RpcRequestRecycler.recycle(request);
+                    }
+                }
+
+                if (count == 0) {
+                    out.writerIndex(headerIndex);
+                } else {
+                    setEntryCount(out, headerIndex, count);
+                    ProtocolHelper.adjustLength(out, headerIndex, version);
+                }
+            }
+        } finally {
+            //出现异常的时候把还没有处理的RpcRequest也回收掉
+            for (; index < requests.size(); index++) {
+                RpcRequestRecycler.recycle(requests.get(index));
+            }
+            RpcRequestBatchRecycler.recycle(batch);
+        }
+    }
+
+    private boolean encodeEntry(RpcRequest request, ByteBuf out, int version) {
+        int entryIndex = out.writerIndex();
+        byte typeId = request.getTypeId();
+        writeEntryHeader(out, request.getRequestId(), request.getMethodId(), wireType(request));
+        writeTimeout(out, version, request.getDeadline());
+        switch (typeId) {
+            case OBJECT:
+                if (!processRpcRequest(request, out)) {
+                    out.writerIndex(entryIndex);
+                    return false;
+                }
+                adjustEntryLength(out, entryIndex);
+                return true;
+            case EMPTY_TYPE:
+                adjustEntryLength(out, entryIndex);
+                return true;
+            default:
+                out.writerIndex(entryIndex);
+                log.error("Can not support type {}", typeId);
+                return false;
+        }
+    }
+
+    /**
+     * 单向调用的请求在type上面加上ONE_WAY_FLAG，ClientProxy只有在协商出来的版本支持的时候才会设置oneWay
+     */
+    private static byte wireType(RpcRequest request) {
+        return request.isOneWay() ? (byte) (request.getTypeId() | ONE_WAY_FLAG) : request.getTypeId();
+    }
+
+    /**
+     * 在写出去之前注册，这个时候一定是在IO线程里面，所以回复一定是在注册以后才会到达
+     *
+     * @return 调用者已经放弃了这个请求的时候返回false，这个请求不需要再发送
+     */
+    private boolean register(RpcRequest request) {
+        Task task = request.getTask();
+        if (task == null) {
+            return true;
+        }
+        if (task.isAbandoned(request.getRequestId())) {
+            //还在Batcher的队列里面的时候就已经超时或者取消了，cancel的时候PendingRequests里面还没有，没有办法发送CANCEL帧，
+            //发送出去的话服务器会直接丢掉过期的请求，不会回复，注册的Task就会一直留在PendingRequests里面
+            return false;
+        }
+        pending.register(request.getRequestId(), task);
+        return true;
+    }
+
+    private void adjustLength(RpcRequest request, ByteBuf out, int headerIndex, int version) {
+        try {
+            ProtocolHelper.adjustLength(out, headerIndex, version);
+        } catch (RpcException e) {
+            //参数太大，当前协议版本没有办法表示，那么这个请求就不发送了，直接告诉调用者失败
+            out.writerIndex(headerIndex);
+            log.error("Can not send request {} to server", request.getRequestId(), e);
+            pending.complete(
+                    request.getRequestId(),
+                    new RpcException(e).withStatus(CLIENT_SERIALIZER_ERROR).withError(e.getMessage())
+            );
+        }
+    }
+
+    private boolean processRpcRequest(RpcRequest request, ByteBuf buffer) {
+        ByteBuf payload = request.getPayload();
+        if (payload != null) {
+            //参数已经在调用线程里面序列化好了，payload在RpcRequest回收的时候释放
+            buffer.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+            return true;
+        }
+
         try (ByteBufOutputStream out = ByteBufOutputStreamRecycler.newInstance(buffer)) {
             request.getMethodUnit().serializeParameter(request.getBody(), out);
+            return true;
         } catch (Exception e) {
             //注意：Encoder里面是不会抛出异常的，只是会单纯的给future一个错误的listener回调，所以这个地方需要捕获
             //异常，然后打印一下，因为这个地方是发送消息的逻辑，所以失败了也无所谓,客户端发送消息失败了,提示一下错误消息就可以了
-            ReferenceCountUtil.release(buffer);
+            //out是MessageToByteEncoder负责释放的，这里只需要把已经写入的部分丢掉，不要把半个请求发送出去
             log.error("Can not serialize parameter to ByteBuf", e);
-            ClientHelper.setValue(
+            pending.complete(
                     request.getRequestId(),
                     new RpcException(e).withStatus(CLIENT_SERIALIZER_ERROR).withError(e.getMessage())
             );
+            return false;
         }
     }
 }
@@ -3,85 +3,174 @@ package com.lee.rpc.encoder;
 import com.lee.rpc.RpcException;
 import com.lee.rpc.RpcExceptionSerializer;
 import com.lee.rpc.RpcRequest;
+import com.lee.rpc.RpcRequestBatch;
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.helper.recycler.ByteBufOutputStreamRecycler;
+import com.lee.rpc.helper.recycler.RpcRequestBatchRecycler;
 import com.lee.rpc.helper.recycler.RpcRequestRecycler;
+import com.lee.rpc.helper.server.InflightRequests;
 import com.lee.rpc.util.stream.ByteBufOutputStream;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 import lombok.extern.slf4j.Slf4j;
 
-import static com.lee.rpc.util.Constant.ABNORMAL;
-import static com.lee.rpc.util.Constant.EMPTY_TYPE;
-import static com.lee.rpc.util.Constant.EMPTY_VALUE;
-import static com.lee.rpc.util.Constant.NORMAL;
+import java.util.List;
+
+import static com.lee.rpc.helper.ProtocolHelper.*;
+import static com.lee.rpc.util.Constant.*;
 import static com.lee.rpc.util.exception.ErrorType.SERIALIZER_ERROR;
 
 /**
- * 4            8           1          1     2             xxx bytes
+ * 4            8           1          1     2/4           xxx bytes
  * serviceId    requestId   methodId   type  bodyLength    bodyContext
+ * <p>
+ * bodyLength的大小由当前Channel协商出来的协议版本决定，RpcRequestBatch会被编码成BATCH帧，参考ProtocolHelper
  *
  * @author l46li
  */
 @Slf4j
-public class RpcServerEncoder extends MessageToByteEncoder<RpcRequest> {
+public class RpcServerEncoder extends MessageToByteEncoder<Object> {
 
     private static final RpcExceptionSerializer exceptionSerializer = new RpcExceptionSerializer();
 
+    /**
+     * 协商出来的协议版本不支持CANCEL的时候一直是null，参考InflightRequests
+     */
+    private InflightRequests inflight;
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) {
+        //心跳和METADATA直接就是ByteBuf，不需要经过encoder
+        return msg instanceof RpcRequest || msg instanceof RpcRequestBatch;
+    }
+
     @Override
-    protected void encode(ChannelHandlerContext ctx, RpcRequest request, ByteBuf out) {
+    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) {
+        if (inflight == null) {
+            inflight = InflightRequests.of(ctx.channel());
+        }
+        int version = ProtocolHelper.getProtocolVersion(ctx.channel());
+        if (msg instanceof RpcRequestBatch) {
+            encodeBatch((RpcRequestBatch) msg, out, version);
+        } else {
+            encodeResponse((RpcRequest) msg, out, version);
+        }
+    }
+
+    private void encodeResponse(RpcRequest request, ByteBuf out, int version) {
         try {
-            int serviceId = request.getServiceId();
+            int headerIndex = out.writerIndex();
             byte typeId = request.getTypeId();
 
-            out.writeInt(serviceId);
-            out.writeLong(request.getRequestId());
-            out.writeByte(request.getMethodId());
-            out.writeByte(typeId);
-            out.writeShort(EMPTY_VALUE);
-
-            switch (typeId) {
-                case NORMAL:
-                    processReturnValue(request, out);
-                    adjust(out);
-                    break;
-                case ABNORMAL:
-                    processRpcException(request, out);
-                    adjust(out);
-                    break;
-                case EMPTY_TYPE:
-                    break;
-                default:
-                    throw new RpcException("Can not support type " + typeId);
+            writeHeader(out, version, request.getServiceId(), request.getRequestId(), request.getMethodId(), typeId);
+
+            if (typeId != EMPTY_TYPE) {
+                processBody(request, out, headerIndex + TYPE_OFFSET, out.writerIndex());
+                adjust(request, out, headerIndex, version);
             }
         } finally {
-            RpcRequestRecycler.recycle(request);
+            recycle(request);
         }
     }
 
-    private void adjust(ByteBuf out) {
-        out.markReaderIndex();
-        out.readerIndex(16);
-        int bodyLength = out.readableBytes();
-        out.resetReaderIndex();
+    /**
+     * body超过BATCH_BODY_LIMIT以后开始一个新的BATCH帧
+     */
+    private void encodeBatch(RpcRequestBatch batch, ByteBuf out, int version) {
+        List<RpcRequest> requests = batch.getRequests();
+        int index = 0;
+        try {
+            while (index < requests.size()) {
+                int headerIndex = out.writerIndex();
+                int count = 0;
+                writeHeader(out, version, batch.getServiceId(), EMPTY_VALUE, EMPTY_VALUE, BATCH);
+
+                int bodyIndex = out.writerIndex();
+                while (index < requests.size() && out.writerIndex() - bodyIndex < BATCH_BODY_LIMIT) {
+                    RpcRequest request = requests.get(index++);
+                    try {
+                        int entryIndex = out.writerIndex();
+                        writeEntryHeader(out, request.getRequestId(), request.getMethodId(), request.getTypeId());
+                        if (request.getTypeId() != EMPTY_TYPE) {
+                            processBody(request, out, entryIndex + ENTRY_TYPE_OFFSET, out.writerIndex());
+                            adjustEntryLength(out, entryIndex);
+                        }
+                        count++;
+                    } finally {
+                        recycle(request);
+                    }
+                }
 
-        out.markWriterIndex();
-        out.writerIndex(14);
-        out.writeShort(bodyLength);
-        out.resetWriterIndex();
+                setEntryCount(out, headerIndex, count);
+                ProtocolHelper.adjustLength(out, headerIndex, version);
+            }
+        } finally {
+            for (; index < requests.size(); index++) {
+                recycle(requests.get(index));
+            }
+            RpcRequestBatchRecycler.recycle(batch);
+        }
     }
 
-    private void processReturnValue(RpcRequest request, ByteBuf byteBuf) {
+    /**
+     * 回收之前先从InflightRequests里面删除，这样CANCEL就不会标记到被重用的RpcRequest上面
+     */
+    private void recycle(RpcRequest request) {
+        if (inflight != null) {
+            inflight.complete(request);
+        }
+        RpcRequestRecycler.recycle(request);
+    }
+
+    private void processBody(RpcRequest request, ByteBuf out, int typeIndex, int bodyIndex) {
+        switch (request.getTypeId()) {
+            case NORMAL:
+            case STREAM:
+                processReturnValue(request, out, typeIndex, bodyIndex);
+                break;
+            case ABNORMAL:
+                processRpcException(request, out);
+                break;
+            default:
+                throw new RpcException("Can not support type " + request.getTypeId());
+        }
+    }
+
+    private void adjust(RpcRequest request, ByteBuf out, int headerIndex, int version) {
+        try {
+            ProtocolHelper.adjustLength(out, headerIndex, version);
+        } catch (RpcException e) {
+            //返回值太大，当前协议版本没有办法表示，那么就把返回值换成错误信息发送回去，错误信息是很小的
+            log.error("Can not send response {} to client", request.getRequestId(), e);
+            toAbnormal(out, headerIndex + TYPE_OFFSET, headerIndex + headerLength(version));
+            processRpcException(
+                    request.body(new RpcException(e).withStatus(SERIALIZER_ERROR).withError(e.getMessage())), out
+            );
+            ProtocolHelper.adjustLength(out, headerIndex, version);
+        }
+    }
+
+    private void toAbnormal(ByteBuf out, int typeIndex, int bodyIndex) {
+        //因为出现了错误，所需需要修改typeId类型为不正常ABNORMAL，并且丢掉已经写入的body，然后在发送消息
+        out.setByte(typeIndex, ABNORMAL);
+        out.writerIndex(bodyIndex);
+    }
+
+    private void processReturnValue(RpcRequest request, ByteBuf byteBuf, int typeIndex, int bodyIndex) {
+        ByteBuf payload = request.getPayload();
+        if (payload != null) {
+            //已经在executor线程里面序列化好了，payload在RpcRequest回收的时候释放
+            byteBuf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+            return;
+        }
+
         try (ByteBufOutputStream out = ByteBufOutputStreamRecycler.newInstance(byteBuf)) {
             request.getMethodUnit().serializeReturnValue(request.getBody(), out);
         } catch (Exception e) {
             log.error("Can not deserialize " + request.getBody(), e);
 
-            //因为出现了错误，所需需要修改typeId类型为不正常ABNORMAL，然后在发送消息
-            byteBuf.markWriterIndex();
-            byteBuf.writerIndex(13);
-            byteBuf.writeShort(ABNORMAL);
-            byteBuf.resetWriterIndex();
+            toAbnormal(byteBuf, typeIndex, bodyIndex);
 
             processRpcException(
                     request.body(
@@ -3,6 +3,7 @@ package com.lee.rpc.executor;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.lee.rpc.RpcException;
 import com.lee.rpc.RpcRequest;
+import com.lee.rpc.helper.server.InflightRequests;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelFutureListener;
@@ -62,7 +63,10 @@ public class DelayWorker implements Runnable {
     public void add(RpcRequest request) {
         Channel channel = request.getChannel();
         if (!isShutdown) {
-            if (request.getRetryCount() >= 4) {
+            if (request.isAbandoned()) {
+                //客户端已经不再等待了，没有必要再延迟5秒重试，也不需要为了它把Channel设置成不可读
+                drop(request);
+            } else if (request.getRetryCount() >= 4) {
                 channel.writeAndFlush(
                         request.type(ABNORMAL).body(
                                 new RpcException()
@@ -97,7 +101,10 @@ public class DelayWorker implements Runnable {
         while (!Thread.currentThread().isInterrupted()) {
             try {
                 RpcRequest request = delayChannels.take();
-                if (request.getRetryCount() >= 4) {
+                if (request.isAbandoned()) {
+                    active(request.getChannel());
+                    drop(request);
+                } else if (request.getRetryCount() >= 4) {
                     final Channel channel = request.getChannel();
                     channel.writeAndFlush(
                             request.type(ABNORMAL).body(
@@ -147,6 +154,21 @@ public class DelayWorker implements Runnable {
         }
     }
 
+    /**
+     * 在IO线程里面收到CANCEL帧的时候调用，已经被取出来的请求在执行之前会检查isAbandoned，所以删除失败也没有关系
+     */
+    public void cancel(RpcRequest request) {
+        if (delayChannels.remove(request)) {
+            active(request.getChannel());
+            drop(request);
+        }
+    }
+
+    private void drop(RpcRequest request) {
+        log.debug("Request {} abandoned in delay queue, drop it", request.getRequestId());
+        InflightRequests.release(request);
+    }
+
     public synchronized void close() {
         if (!this.isShutdown) {
             this.isShutdown = true;
@@ -0,0 +1,233 @@
+package com.lee.rpc.helper;
+
+import com.lee.rpc.RpcException;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.lee.rpc.helper.RpcHelper.PROTOCOL;
+import static com.lee.rpc.util.Constant.*;
+
+/**
+ * 负责处理不同版本的协议头，所有的encoder和decoder都通过这里来读写协议头，而不是自己去计算偏移量
+ * <p>
+ * V1:
+ * 4          8          1         1     2            N bytes
+ * serviceId  requestId  methodId  type  bodyLength   bodyContent
+ * <p>
+ * V2:
+ * 4          8          1         1     4            N bytes
+ * serviceId  requestId  methodId  type  bodyLength   bodyContent
+ * <p>
+ * V3: 在V2的基础上面增加了BATCH类型，一个帧里面包含多个请求或者多个回复，协议头里面的requestId是entry的个数
+ * 4          8           1         1      4            N entries
+ * serviceId  entryCount  EMPTY     BATCH  bodyLength   entry...
+ * 每一个entry如下，同一个BATCH里面的serviceId都是一样的:
+ * 8          1         1     4            N bytes
+ * requestId  methodId  type  bodyLength   bodyContent
+ * <p>
+ * V4: 在V3的基础上面，客户端发送的请求(OBJECT和EMPTY_TYPE，包括BATCH里面的entry)在bodyLength后面多了4个字节的timeout，
+ * 表示客户端还愿意等待多少毫秒，0表示没有限制。这4个字节算在bodyLength里面，所以分帧的方式和V3完全一样，回复也和V3一样
+ * 4          8          1         1     4            4        N bytes
+ * serviceId  requestId  methodId  type  bodyLength   timeout  bodyContent
+ * 使用剩余的时间而不是绝对时间，因为客户端和服务器的时钟不一定是同步的，服务器收到以后加上自己的当前时间就是deadline
+ * <p>
+ * V5: 帧的格式和V4一样，增加了CANCEL类型，客户端超时或者关闭流的时候发送，只有协议头，requestId就是需要取消的请求
+ * <p>
+ * V6: 帧的格式和V5一样，请求(包括BATCH里面的entry)的type可以带上ONE_WAY_FLAG，表示客户端不会等待这个请求的回复，
+ * 服务器执行完以后不写回复。只有客户端才知道自己是否在等待，所以由请求自己携带，而不是服务器根据METADATA来决定
+ * <p>
+ * 每一个Channel建立以后都是V1，客户端在METADATA请求里面使用methodId携带自己支持的最高版本，服务器在返回的RpcService里面
+ * 携带自己支持的最高版本，双方都取较小的那个值作为当前Channel的版本，老的客户端发送的methodId就是METADATA，这个时候就使用V1
+ *
+ * @author Administrator
+ */
+public final class ProtocolHelper {
+
+    /**
+     * 当前支持的最高版本
+     */
+    public static final byte PROTOCOL_VERSION = PROTOCOL_V6;
+
+    /**
+     * V1最大只能够表示65535个字节的body，所以1M已经足够了
+     */
+    public static final int V1_MAX_FRAME_LENGTH = 1048576;
+    public static final int V1_MAX_BODY_LENGTH = 0xFFFF;
+
+    /**
+     * V2默认的最大帧大小，可以通过@RpcServer和@RpcClient的maxFrameLength来修改
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    public static final int TYPE_OFFSET = 13;
+    public static final int LENGTH_FIELD_OFFSET = 14;
+
+    public static final int ENTRY_TYPE_OFFSET = 9;
+    public static final int ENTRY_LENGTH_FIELD_OFFSET = 10;
+    public static final int ENTRY_HEADER_LENGTH = 14;
+
+    /**
+     * 一个BATCH帧的body超过这个大小以后，剩下的entry放到下一个BATCH帧里面去，body比较大的时候合并帧已经没有什么意义了，
+     * 还可能超过对方的最大帧大小
+     */
+    public static final int BATCH_BODY_LIMIT = 64 * 1024;
+
+    private ProtocolHelper() {
+    }
+
+    public static int lengthFieldLength(int version) {
+        return version >= PROTOCOL_V2 ? 4 : 2;
+    }
+
+    public static int headerLength(int version) {
+        return LENGTH_FIELD_OFFSET + lengthFieldLength(version);
+    }
+
+    /**
+     * 还没有协商的Channel使用的是V1
+     *
+     * @param channel 当前的Channel
+     * @return 返回当前Channel协商好的版本
+     */
+    public static int getProtocolVersion(Channel channel) {
+        Integer version = channel.attr(PROTOCOL).get();
+        return version == null ? PROTOCOL_V1 : version;
+    }
+
+    /**
+     * 客户端只有在METADATA交换完成以后才可以发送请求，否则服务器和客户端对协议头的理解可能不一致
+     *
+     * @param channel 当前的Channel
+     * @return 返回是否已经协商完成
+     */
+    public static boolean isNegotiated(Channel channel) {
+        return channel.hasAttr(PROTOCOL);
+    }
+
+    /**
+     * @param peerVersion 对方支持的最高版本，老版本不会携带这个值，所以小于V1的时候都当作V1来处理
+     * @return 返回双方都支持的版本
+     */
+    public static int negotiate(int peerVersion) {
+        if (peerVersion < PROTOCOL_V1) {
+            return PROTOCOL_V1;
+        }
+        return Math.min(peerVersion, PROTOCOL_VERSION);
+    }
+
+    public static void writeHeader(ByteBuf out, int version,
+                                   int serviceId, long requestId, byte methodId, byte typeId) {
+        out.writeInt(serviceId);
+        out.writeLong(requestId);
+        out.writeByte(methodId);
+        out.writeByte(typeId);
+        if (version >= PROTOCOL_V2) {
+            out.writeInt(EMPTY_VALUE);
+        } else {
+            out.writeShort(EMPTY_VALUE);
+        }
+    }
+
+    public static boolean isBatchSupported(Channel channel) {
+        return getProtocolVersion(channel) >= PROTOCOL_V3;
+    }
+
+    public static boolean isCancelSupported(int version) {
+        return version >= PROTOCOL_V5;
+    }
+
+    public static boolean isOneWaySupported(int version) {
+        return version >= PROTOCOL_V6;
+    }
+
+    public static boolean isOneWaySupported(Channel channel) {
+        return isOneWaySupported(getProtocolVersion(channel));
+    }
+
+    public static boolean isTimeoutSupported(int version) {
+        return version >= PROTOCOL_V4;
+    }
+
+    /**
+     * V4开始请求的协议头后面跟着剩余的超时时间，已经过期的请求也至少写1毫秒，交给服务器去丢弃，客户端的时间轮会负责通知调用者
+     *
+     * @param deadline 客户端本地System.nanoTime()的deadline，0表示没有限制
+     */
+    public static void writeTimeout(ByteBuf out, int version, long deadline) {
+        if (isTimeoutSupported(version)) {
+            if (deadline == 0) {
+                out.writeInt(EMPTY_VALUE);
+            } else {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                out.writeInt((int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE)));
+            }
+        }
+    }
+
+    /**
+     * @return 返回服务器本地System.nanoTime()的deadline，0表示没有限制
+     */
+    public static long readTimeout(ByteBuf in, int version) {
+        if (isTimeoutSupported(version)) {
+            int timeout = in.readInt();
+            if (timeout > 0) {
+                //0已经用来表示没有限制了，刚好算出来是0的时候往后挪一纳秒
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                return deadline == 0 ? 1 : deadline;
+            }
+        }
+        return 0;
+    }
+
+    public static void writeEntryHeader(ByteBuf out, long requestId, byte methodId, byte typeId) {
+        out.writeLong(requestId);
+        out.writeByte(methodId);
+        out.writeByte(typeId);
+        out.writeInt(EMPTY_VALUE);
+    }
+
+    /**
+     * @param out        写入数据的ByteBuf
+     * @param entryIndex entry开始的位置
+     */
+    public static void adjustEntryLength(ByteBuf out, int entryIndex) {
+        out.setInt(entryIndex + ENTRY_LENGTH_FIELD_OFFSET, out.writerIndex() - entryIndex - ENTRY_HEADER_LENGTH);
+    }
+
+    /**
+     * BATCH帧的requestId字段存放的是entry的个数
+     */
+    public static void setEntryCount(ByteBuf out, int headerIndex, int count) {
+        out.setLong(headerIndex + 4, count);
+    }
+
+    public static int readBodyLength(ByteBuf in, int version) {
+        return version >= PROTOCOL_V2 ? in.readInt() : in.readUnsignedShort();
+    }
+
+    /**
+     * body写完以后回填bodyLength
+     *
+     * @param out         写入数据的ByteBuf
+     * @param headerIndex 协议头开始的位置
+     * @param version     当前Channel的版本
+     * @return 返回body的大小
+     */
+    public static int adjustLength(ByteBuf out, int headerIndex, int version) {
+        int bodyLength = out.writerIndex() - headerIndex - headerLength(version);
+        if (version >= PROTOCOL_V2) {
+            out.setInt(headerIndex + LENGTH_FIELD_OFFSET, bodyLength);
+        } else {
+            //V1只有2个字节，超过了以后对方会把帧拆错，后面的数据全部都乱了，所以这个地方直接报错
+            if (bodyLength > V1_MAX_BODY_LENGTH) {
+                throw new RpcException(
+                        "Body length " + bodyLength + " exceeds " + V1_MAX_BODY_LENGTH + " bytes, peer only supports protocol v1"
+                );
+            }
+            out.setShort(headerIndex + LENGTH_FIELD_OFFSET, bodyLength);
+        }
+        return bodyLength;
+    }
+}
@@ -4,7 +4,9 @@ import com.lee.rpc.RpcException;
 import com.lee.rpc.RpcRequest;
 import com.lee.rpc.RpcService;
 import com.lee.rpc.executor.DelayWorker;
+import com.lee.rpc.helper.client.PendingRequests;
 import com.lee.rpc.helper.client.RpcServiceClientUnit;
+import com.lee.rpc.helper.server.InflightRequests;
 import com.lee.rpc.helper.server.NettyServer;
 import com.lee.rpc.helper.server.RpcServiceServerUnit;
 import com.lee.rpc.util.SnowFlakeIdGenerator;
@@ -32,6 +34,11 @@ public class RpcHelper {
     public static final AttributeKey<List<Long>> KEY = AttributeKey.newInstance("KEY");
     public static final AttributeKey<InetSocketAddress> ADDRESS = AttributeKey.newInstance("ADDRESS");
     public static final AttributeKey<String> ZOOKEEPER = AttributeKey.newInstance("ZOOKEEPER");
+    public static final AttributeKey<Integer> PROTOCOL = AttributeKey.newInstance("PROTOCOL");
+    public static final AttributeKey<RpcRequestBatcher> BATCHER = AttributeKey.newInstance("BATCHER");
+    public static final AttributeKey<Object> WRITABILITY = AttributeKey.newInstance("WRITABILITY");
+    public static final AttributeKey<PendingRequests> PENDING = AttributeKey.newInstance("PENDING");
+    public static final AttributeKey<InflightRequests> INFLIGHT = AttributeKey.newInstance("INFLIGHT");
     public static final String ZOOKEEPER_PREFIX = "zookeeper://";
 
     private RpcHelper() {
@@ -70,6 +77,8 @@ public class RpcHelper {
             unit.setWorkers(rpcService.getWorkers());
             unit.setAddress(address);
             unit.setWeight(rpcService.getWeight());
+            unit.setMaxFrameLength(rpcService.getMaxFrameLength());
+            unit.setBatchSize(rpcService.getBatchSize());
             unit.setRpcService(rpcService);
             unit.setMethodIdMapping(rpcService.getAllRpcMethod());
             SERVER_RPC_SERVICES.put(rpcService.getServiceId(), unit);
@@ -83,7 +92,8 @@ public class RpcHelper {
                 unit.getRpcService().setLocation(rpcService.getLocation());
             }
 
-            //同一个serviceId提供的所有服务，需要merge在一起
+            //同一个serviceId提供的所有服务，需要merge在一起, 最大帧大小以最大的那个为准
+            unit.setMaxFrameLength(Math.max(unit.getMaxFrameLength(), rpcService.getMaxFrameLength()));
             unit.merge(rpcService);
         }
     }
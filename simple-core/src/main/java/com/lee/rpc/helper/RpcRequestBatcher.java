@@ -0,0 +1,111 @@
+package com.lee.rpc.helper;
+
+import com.lee.rpc.RpcRequest;
+import com.lee.rpc.RpcRequestBatch;
+import com.lee.rpc.helper.recycler.RpcRequestBatchRecycler;
+import io.netty.channel.Channel;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.lee.rpc.helper.RpcHelper.BATCHER;
+
+/**
+ * 每一个Channel对应一个，调用线程只是把RpcRequest放到队列里面去，然后由IO线程一次性把队列里面的RpcRequest取出来，合并成BATCH
+ * 写出去，最后只flush一次，这样多个请求就只需要一个协议头和一次系统调用
+ * <p>
+ * batchDelayMicros为0的时候不做任何等待，IO线程开始处理的时候队列里面有多少就合并多少，并发越高合并的越多，并发低的时候
+ * 基本上就是一个请求一个帧，不会增加延迟；大于0的时候会等待指定的微秒数，或者队列里面已经有batchSize个请求了再写出去
+ * <p>
+ * 只有协商出来的协议版本大于等于V3的Channel才会创建，参考ProtocolHelper
+ *
+ * @author Administrator
+ */
+public class RpcRequestBatcher implements Runnable {
+
+    private final Queue<RpcRequest> queue = PlatformDependent.newMpscQueue();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Channel channel;
+    private final int batchSize;
+    private final long batchDelayMicros;
+
+    public RpcRequestBatcher(Channel channel, int batchSize, long batchDelayMicros) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.batchDelayMicros = batchDelayMicros;
+    }
+
+    /**
+     * 所有的RpcRequest都通过这个方法写出去，没有开启BATCH的Channel直接writeAndFlush
+     *
+     * @param channel 需要写入的Channel
+     * @param request 需要写入的请求或者回复
+     */
+    public static void write(Channel channel, RpcRequest request) {
+        RpcRequestBatcher batcher = channel.attr(BATCHER).get();
+        if (batcher == null) {
+            channel.writeAndFlush(request);
+        } else {
+            batcher.offer(request);
+        }
+    }
+
+    /**
+     * batchSize小于等于1的时候表示不需要合并
+     */
+    public static void install(Channel channel, int batchSize, long batchDelayMicros) {
+        if (batchSize > 1 && ProtocolHelper.isBatchSupported(channel)) {
+            channel.attr(BATCHER).set(new RpcRequestBatcher(channel, batchSize, batchDelayMicros));
+        }
+    }
+
+    public void offer(RpcRequest request) {
+        queue.offer(request);
+        if (scheduled.compareAndSet(false, true)) {
+            if (batchDelayMicros > 0) {
+                channel.eventLoop().schedule(this, batchDelayMicros, TimeUnit.MICROSECONDS);
+            } else {
+                channel.eventLoop().execute(this);
+            }
+        } else if (batchDelayMicros > 0 && queue.size() >= batchSize) {
+            //已经够一个batch了，不需要再等下去，定时任务到了以后发现队列是空的，什么也不做
+            channel.eventLoop().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        //先设置成false，在取数据的过程中新加入的请求会重新调度一次，最坏的情况是多执行一次空的run
+        scheduled.set(false);
+
+        RpcRequest request = queue.poll();
+        if (request == null) {
+            return;
+        }
+
+        while (request != null) {
+            RpcRequest next = queue.poll();
+            if (next == null) {
+                //只有一个的时候，没有必要使用BATCH
+                channel.write(request);
+                break;
+            }
+
+            RpcRequestBatch batch = RpcRequestBatchRecycler.newInstance(request.getServiceId()).add(request);
+            while (next != null && batch.size() < batchSize && next.getServiceId() == batch.getServiceId()) {
+                batch.add(next);
+                next = queue.poll();
+            }
+            if (batch.size() > 1) {
+                channel.write(batch);
+            } else {
+                channel.write(request);
+                RpcRequestBatchRecycler.recycle(batch);
+            }
+            request = next;
+        }
+        channel.flush();
+    }
+}
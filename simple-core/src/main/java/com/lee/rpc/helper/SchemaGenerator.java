@@ -0,0 +1,407 @@
+package com.lee.rpc.helper;
+
+import com.lee.rpc.schema.GeneratedSchema;
+import io.protostuff.Schema;
+import io.protostuff.runtime.RuntimeSchema;
+import javassist.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 使用javassist给每一个参数和返回值的类型生成一个Schema，字段的读写都是直接调用getter/setter的代码，不需要像RuntimeSchema那样
+ * 通过Unsafe一个字段一个字段的去处理
+ * <p>
+ * 生成的Schema和RuntimeSchema的格式是完全一样的，字段的编号也是按照RuntimeSchema的规则来的(父类的字段在前面，按照声明的顺序从1开始)，
+ * 所以和没有使用生成的Schema的老版本之间可以互相解析。只支持下面这些类型的字段:
+ * 1. 基本类型和对应的包装类型
+ * 2. String，byte[]，enum
+ * 3. 满足同样条件的其他对象，会递归生成对应的Schema
+ * 只要有一个字段不满足条件，比如集合，数组，Object，没有getter/setter的private字段，或者使用了protostuff的注解，那么整个类型
+ * 都还是使用RuntimeSchema，这个时候只打印debug日志，生成代码失败的时候才打印warn日志
+ * <p>
+ * 有循环引用的时候，类型本身还是生成的，只是引用正在生成的类型的那个字段使用RuntimeSchema
+ *
+ * @author Administrator
+ */
+@Slf4j
+public final class SchemaGenerator {
+
+    private static final Map<Class<?>, Schema<?>> SCHEMAS = new ConcurrentHashMap<>();
+    private static final Set<Class<?>> GENERATING = new HashSet<>();
+    private static final AtomicInteger ID = new AtomicInteger();
+
+    private SchemaGenerator() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Schema<T> getSchema(Class<T> type) {
+        Schema<?> schema = SCHEMAS.get(type);
+        if (schema == null) {
+            synchronized (SchemaGenerator.class) {
+                schema = SCHEMAS.get(type);
+                if (schema == null) {
+                    schema = generate(type);
+                    SCHEMAS.put(type, schema);
+                }
+            }
+        }
+        return (Schema<T>) schema;
+    }
+
+    private static <T> Schema<T> generate(Class<T> type) {
+        List<FieldUnit> fields = resolveFields(type);
+        if (fields == null) {
+            log.debug("Type {} has fields not supported by SchemaGenerator, use RuntimeSchema instead", type);
+            return RuntimeSchema.getSchema(type);
+        }
+
+        GENERATING.add(type);
+        try {
+            return createSchema(type, fields);
+        } catch (Exception e) {
+            log.warn("Can not generate schema for " + type + ", use RuntimeSchema instead", e);
+            return RuntimeSchema.getSchema(type);
+        } finally {
+            GENERATING.remove(type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Schema<T> createSchema(Class<T> type, List<FieldUnit> fields) throws Exception {
+        ClassPool pool = ClassPool.getDefault();
+        CtClass schemaClass = pool.makeClass(GeneratedSchema.class.getPackage().getName() + "." +
+                "Schema_" + type.getSimpleName() + "_" + ID.incrementAndGet()
+        );
+        schemaClass.setSuperclass(pool.get(GeneratedSchema.class.getName()));
+
+        CtClass inputClass = pool.get("io.protostuff.Input");
+        CtClass outputClass = pool.get("io.protostuff.Output");
+        CtClass objectClass = pool.get(Object.class.getName());
+
+        CtConstructor cons = new CtConstructor(new CtClass[]{
+                pool.get(Class.class.getName()), pool.get(String[].class.getName()), pool.get(Schema[].class.getName())
+        }, schemaClass);
+        cons.setBody("{super($1, $2, $3);}");
+        cons.setModifiers(Modifier.PUBLIC);
+        schemaClass.addConstructor(cons);
+
+        CtMethod newMessage = new CtMethod(objectClass, "newMessage", new CtClass[0], schemaClass);
+        newMessage.setModifiers(Modifier.PUBLIC);
+        newMessage.setBody("{return new " + type.getName() + "();}");
+        schemaClass.addMethod(newMessage);
+
+        List<Schema<?>> schemas = new ArrayList<>();
+        String[] fieldNames = new String[fields.size()];
+        StringBuilder write = new StringBuilder("{").append(type.getName()).append(" m = (")
+                .append(type.getName()).append(") $2;\n");
+        StringBuilder read = new StringBuilder("{").append(type.getName()).append(" m = (")
+                .append(type.getName()).append(") $2;\n")
+                .append("while (true) {\n")
+                .append("int number = $1.readFieldNumber($0);\n")
+                .append("switch (number) {\n")
+                .append("case 0: return;\n");
+
+        for (FieldUnit field : fields) {
+            fieldNames[field.number - 1] = field.name;
+            if (field.kind == Kind.MESSAGE) {
+                //有循环引用的时候，正在生成的类型直接使用RuntimeSchema
+                field.schemaIndex = schemas.size();
+                schemas.add(GENERATING.contains(field.type) ? RuntimeSchema.getSchema(field.type) : getSchema(field.type));
+            }
+            field.appendWrite(write);
+            field.appendRead(read);
+        }
+
+        write.append("}");
+        read.append("default: $1.handleUnknownField(number, $0);\n")
+                .append("}\n}\n}");
+
+        CtMethod writeTo = new CtMethod(CtClass.voidType, "writeTo", new CtClass[]{outputClass, objectClass}, schemaClass);
+        writeTo.setModifiers(Modifier.PUBLIC);
+        writeTo.setBody(write.toString());
+        schemaClass.addMethod(writeTo);
+
+        CtMethod mergeFrom = new CtMethod(CtClass.voidType, "mergeFrom", new CtClass[]{inputClass, objectClass}, schemaClass);
+        mergeFrom.setModifiers(Modifier.PUBLIC);
+        mergeFrom.setBody(read.toString());
+        schemaClass.addMethod(mergeFrom);
+
+        //schemaClass.writeFile("/home/lee");
+
+        Class<?> generated = schemaClass.toClass(
+                GeneratedSchema.class.getClassLoader(), GeneratedSchema.class.getProtectionDomain()
+        );
+        schemaClass.detach();
+        return (Schema<T>) generated.getConstructor(Class.class, String[].class, Schema[].class)
+                .newInstance(type, fieldNames, schemas.toArray(new Schema[0]));
+    }
+
+    /**
+     * 按照RuntimeSchema的规则收集字段，有任何不支持的情况都返回null
+     */
+    private static List<FieldUnit> resolveFields(Class<?> type) {
+        if (!isMessageType(type)) {
+            return null;
+        }
+
+        try {
+            if (!java.lang.reflect.Modifier.isPublic(type.getConstructor().getModifiers())) {
+                return null;
+            }
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for (Class<?> current = type; current != Object.class; current = current.getSuperclass()) {
+            hierarchy.add(0, current);
+        }
+
+        List<FieldUnit> fields = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Class<?> current : hierarchy) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (java.lang.reflect.Modifier.isStatic(modifiers) || java.lang.reflect.Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+
+                //同名字段，合成字段以及protostuff的注解(Tag，Exclude之类的)都会影响RuntimeSchema的字段编号，这些情况不处理
+                if (field.isSynthetic() || !names.add(field.getName()) || hasSpecialAnnotation(field)) {
+                    return null;
+                }
+
+                FieldUnit unit = FieldUnit.create(type, field, fields.size() + 1);
+                if (unit == null) {
+                    return null;
+                }
+                fields.add(unit);
+            }
+        }
+        return fields;
+    }
+
+    private static boolean isMessageType(Class<?> type) {
+        int modifiers = type.getModifiers();
+        return java.lang.reflect.Modifier.isPublic(modifiers)
+                && !java.lang.reflect.Modifier.isAbstract(modifiers)
+                && !type.isInterface() && !type.isEnum() && !type.isArray() && !type.isPrimitive()
+                && (type.getEnclosingClass() == null || java.lang.reflect.Modifier.isStatic(modifiers))
+                && !type.getName().startsWith("java.");
+    }
+
+    private static boolean hasSpecialAnnotation(Field field) {
+        for (Annotation annotation : field.getAnnotations()) {
+            if (annotation instanceof Deprecated
+                    || annotation.annotationType().getName().startsWith("io.protostuff.")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private enum Kind {
+        INT, LONG, FLOAT, DOUBLE, BOOLEAN, SHORT, BYTE, CHAR, STRING, BYTES, ENUM, MESSAGE
+    }
+
+    private static final class FieldUnit {
+
+        private final String name;
+        private final int number;
+        private final Class<?> type;
+        private final Kind kind;
+        private final String getter;
+        private final String setter;
+        private int schemaIndex;
+
+        private FieldUnit(String name, int number, Class<?> type, Kind kind, String getter, String setter) {
+            this.name = name;
+            this.number = number;
+            this.type = type;
+            this.kind = kind;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        private static FieldUnit create(Class<?> owner, Field field, int number) {
+            Class<?> type = field.getType();
+            Kind kind = toKind(type);
+            if (kind == null) {
+                return null;
+            }
+
+            String name = field.getName();
+            int modifiers = field.getModifiers();
+            if (java.lang.reflect.Modifier.isPublic(modifiers) && !java.lang.reflect.Modifier.isFinal(modifiers)) {
+                return new FieldUnit(name, number, type, kind, "m." + name, "m." + name + " = ");
+            }
+
+            String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            Method getter = findMethod(owner, (type == boolean.class ? "is" : "get") + suffix);
+            Method setter = findMethod(owner, "set" + suffix, type);
+            if (getter == null || setter == null || getter.getReturnType() != type) {
+                return null;
+            }
+            return new FieldUnit(name, number, type, kind, "m." + getter.getName() + "()", "m." + setter.getName() + "(");
+        }
+
+        private static Method findMethod(Class<?> owner, String name, Class<?>... parameterTypes) {
+            try {
+                Method method = owner.getMethod(name, parameterTypes);
+                return java.lang.reflect.Modifier.isStatic(method.getModifiers()) ? null : method;
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        private static Kind toKind(Class<?> type) {
+            if (type == int.class || type == Integer.class) {
+                return Kind.INT;
+            } else if (type == long.class || type == Long.class) {
+                return Kind.LONG;
+            } else if (type == float.class || type == Float.class) {
+                return Kind.FLOAT;
+            } else if (type == double.class || type == Double.class) {
+                return Kind.DOUBLE;
+            } else if (type == boolean.class || type == Boolean.class) {
+                return Kind.BOOLEAN;
+            } else if (type == short.class || type == Short.class) {
+                return Kind.SHORT;
+            } else if (type == byte.class || type == Byte.class) {
+                return Kind.BYTE;
+            } else if (type == char.class || type == Character.class) {
+                return Kind.CHAR;
+            } else if (type == String.class) {
+                return Kind.STRING;
+            } else if (type == byte[].class) {
+                return Kind.BYTES;
+            } else if (type.isEnum()) {
+                return Kind.ENUM;
+            } else if (isMessageType(type)) {
+                return Kind.MESSAGE;
+            }
+            return null;
+        }
+
+        private void appendWrite(StringBuilder sb) {
+            String value = "v" + number;
+            sb.append("{").append(sourceName(type)).append(" ").append(value).append(" = ").append(getter).append(";\n");
+            if (!type.isPrimitive()) {
+                //和RuntimeSchema一样，null的字段不写
+                sb.append("if (").append(value).append(" != null) ");
+            }
+            sb.append("$1.");
+            switch (kind) {
+                case INT:
+                    sb.append("writeInt32(").append(number).append(", ").append(unbox(value, "intValue"));
+                    break;
+                case LONG:
+                    sb.append("writeInt64(").append(number).append(", ").append(unbox(value, "longValue"));
+                    break;
+                case FLOAT:
+                    sb.append("writeFloat(").append(number).append(", ").append(unbox(value, "floatValue"));
+                    break;
+                case DOUBLE:
+                    sb.append("writeDouble(").append(number).append(", ").append(unbox(value, "doubleValue"));
+                    break;
+                case BOOLEAN:
+                    sb.append("writeBool(").append(number).append(", ").append(unbox(value, "booleanValue"));
+                    break;
+                case SHORT:
+                    sb.append("writeUInt32(").append(number).append(", (int) ").append(unbox(value, "shortValue"));
+                    break;
+                case BYTE:
+                    sb.append("writeUInt32(").append(number).append(", (int) ").append(unbox(value, "byteValue"));
+                    break;
+                case CHAR:
+                    sb.append("writeUInt32(").append(number).append(", (int) ").append(unbox(value, "charValue"));
+                    break;
+                case STRING:
+                    sb.append("writeString(").append(number).append(", ").append(value);
+                    break;
+                case BYTES:
+                    sb.append("writeByteArray(").append(number).append(", ").append(value);
+                    break;
+                case ENUM:
+                    sb.append("writeEnum(").append(number).append(", ").append(value).append(".ordinal()");
+                    break;
+                case MESSAGE:
+                    sb.append("writeObject(").append(number).append(", ").append(value)
+                            .append(", $0.schemas[").append(schemaIndex).append("]");
+                    break;
+                default:
+                    throw new IllegalStateException("Can not support " + kind);
+            }
+            sb.append(", false);\n}\n");
+        }
+
+        private void appendRead(StringBuilder sb) {
+            String value;
+            switch (kind) {
+                case INT:
+                    value = box("$1.readInt32()", "Integer");
+                    break;
+                case LONG:
+                    value = box("$1.readInt64()", "Long");
+                    break;
+                case FLOAT:
+                    value = box("$1.readFloat()", "Float");
+                    break;
+                case DOUBLE:
+                    value = box("$1.readDouble()", "Double");
+                    break;
+                case BOOLEAN:
+                    value = box("$1.readBool()", "Boolean");
+                    break;
+                case SHORT:
+                    value = box("(short) $1.readUInt32()", "Short");
+                    break;
+                case BYTE:
+                    value = box("(byte) $1.readUInt32()", "Byte");
+                    break;
+                case CHAR:
+                    value = box("(char) $1.readUInt32()", "Character");
+                    break;
+                case STRING:
+                    value = "$1.readString()";
+                    break;
+                case BYTES:
+                    value = "$1.readByteArray()";
+                    break;
+                case ENUM:
+                    value = type.getName() + ".values()[$1.readEnum()]";
+                    break;
+                case MESSAGE:
+                    value = "(" + type.getName() + ") $1.mergeObject(" + getter + ", $0.schemas[" + schemaIndex + "])";
+                    break;
+                default:
+                    throw new IllegalStateException("Can not support " + kind);
+            }
+
+            sb.append("case ").append(number).append(": ").append(setter).append(value);
+            if (setter.endsWith("(")) {
+                sb.append(")");
+            }
+            sb.append("; break;\n");
+        }
+
+        private static String sourceName(Class<?> type) {
+            //javassist认识Outer$Inner这种写法，但是数组需要使用源代码里面的写法
+            return type.isArray() ? type.getComponentType().getName() + "[]" : type.getName();
+        }
+
+        private String unbox(String value, String method) {
+            return type.isPrimitive() ? value : value + "." + method + "()";
+        }
+
+        private String box(String value, String wrapper) {
+            return type.isPrimitive() ? value : "java.lang." + wrapper + ".valueOf(" + value + ")";
+        }
+    }
+}
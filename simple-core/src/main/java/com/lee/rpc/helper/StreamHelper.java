@@ -0,0 +1,115 @@
+package com.lee.rpc.helper;
+
+import com.lee.rpc.RpcException;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.stream.BaseStream;
+import java.util.stream.Stream;
+
+import static com.lee.rpc.helper.RpcHelper.WRITABILITY;
+
+/**
+ * 流式方法的辅助类，返回值声明为Iterator或者Stream的方法就是流式方法，服务器端每得到一个元素就发送一个STREAM帧，
+ * 而不是等所有的元素都准备好以后一次性返回，客户端拿到的也是一个Iterator或者Stream，一边接收一边处理
+ * <p>
+ * 服务器端在Channel不可写的时候会暂停发送，直到ChannelOutboundBuffer降到低水位线以下，参考awaitWritable
+ *
+ * @author Administrator
+ */
+public final class StreamHelper {
+
+    /**
+     * 可写状态的通知是在IO线程里面发出的，这里只是防止错过通知以后一直等下去
+     */
+    private static final long WAIT_MILLIS = 100;
+
+    private StreamHelper() {
+    }
+
+    public static boolean isStreamType(Class<?> type) {
+        return Iterator.class.equals(type) || Stream.class.equals(type);
+    }
+
+    /**
+     * @param genericReturnType 流式方法的返回值，比如Iterator&lt;User&gt;
+     * @return 返回元素的类型，泛型参数本身也是泛型的时候使用它的原始类型
+     */
+    public static Class<?> getElementType(Type genericReturnType) {
+        if (genericReturnType instanceof ParameterizedType) {
+            Type actualType = ((ParameterizedType) genericReturnType).getActualTypeArguments()[0];
+            if (actualType instanceof ParameterizedType) {
+                actualType = ((ParameterizedType) actualType).getRawType();
+            }
+            if (actualType instanceof Class) {
+                return (Class<?>) actualType;
+            }
+        }
+        throw new RpcException("Can not resolve element type of stream " + genericReturnType);
+    }
+
+    public static Iterator<?> toIterator(Object value) {
+        if (value == null) {
+            return Collections.emptyIterator();
+        }
+        if (value instanceof Iterator) {
+            return (Iterator<?>) value;
+        }
+        if (value instanceof BaseStream) {
+            return ((BaseStream<?, ?>) value).iterator();
+        }
+        throw new RpcException("Can not convert " + value.getClass() + " to stream");
+    }
+
+    /**
+     * 在执行器线程里面调用，Channel不可写的时候一直等待，直到重新可写或者Channel已经关闭了
+     *
+     * @param channel 发送STREAM帧的Channel
+     * @return 返回false表示Channel已经关闭了，不需要再继续发送
+     */
+    public static boolean awaitWritable(Channel channel) throws InterruptedException {
+        if (channel.isWritable()) {
+            return true;
+        }
+
+        Object lock = getLock(channel);
+        synchronized (lock) {
+            while (!channel.isWritable()) {
+                if (!channel.isActive()) {
+                    return false;
+                }
+                lock.wait(WAIT_MILLIS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在IO线程的channelWritabilityChanged里面调用，唤醒所有等待这个Channel的执行器线程
+     */
+    public static void writabilityChanged(Channel channel) {
+        Object lock = channel.attr(WRITABILITY).get();
+        if (lock != null) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static Object getLock(Channel channel) {
+        Attribute<Object> attribute = channel.attr(WRITABILITY);
+        Object lock = attribute.get();
+        if (lock == null) {
+            lock = new Object();
+            Object old = attribute.setIfAbsent(lock);
+            if (old != null) {
+                lock = old;
+            }
+        }
+        return lock;
+    }
+}
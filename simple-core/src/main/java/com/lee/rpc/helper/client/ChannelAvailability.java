@@ -0,0 +1,104 @@
+package com.lee.rpc.helper.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每一个ClientProxy一个，hash环上面所有的Channel都不可用(不可写、还没有协商完成或者正在重连)的时候，调用者在这里等待，
+ * 而不是固定的sleep以后再去轮询，IO线程在下面几种情况下通知：
+ * 1. channelWritabilityChanged变成可写
+ * 2. METADATA协商完成，包括重连以后新建立的Channel
+ * <p>
+ * generation每通知一次加1，调用者在选择Channel之前先记录下generation，等待的时候只要generation变了就说明在这期间有Channel
+ * 变成可用的了，这样检查和等待之间发生的通知也不会丢失
+ * <p>
+ * 同步调用者使用带超时的wait，异步调用者注册一个回调，通知的时候在IO线程里面执行
+ *
+ * @author Administrator
+ */
+@Slf4j
+public class ChannelAvailability {
+
+    private final Object lock = new Object();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Queue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @param seen    选择Channel之前记录的generation
+     * @param timeout 最多等待多长时间
+     * @return 返回false表示一直到超时都没有可用的Channel
+     */
+    public boolean await(long seen, long timeout, TimeUnit unit) throws InterruptedException {
+        if (generation.get() != seen) {
+            return true;
+        }
+
+        waiters.incrementAndGet();
+        try {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (lock) {
+                while (generation.get() == seen) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            }
+            return true;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 注册以后generation已经变了的话，说明错过了通知，直接在当前线程里面执行
+     *
+     * @param seen     选择Channel之前记录的generation
+     * @param callback 有Channel变成可用的时候执行，只会执行一次
+     */
+    public void whenAvailable(long seen, Runnable callback) {
+        callbacks.offer(callback);
+        if (generation.get() != seen && callbacks.remove(callback)) {
+            callback.run();
+        }
+    }
+
+    /**
+     * 回调已经不需要了，比如等待超时了，从队列里面删除掉，防止一直没有通知的时候越积越多
+     */
+    public void discard(Runnable callback) {
+        callbacks.remove(callback);
+    }
+
+    /**
+     * 在IO线程里面调用，没有人等待的时候只是一次原子的加法
+     */
+    public void signal() {
+        generation.incrementAndGet();
+        if (waiters.get() > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        Runnable callback;
+        while ((callback = callbacks.poll()) != null) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                log.warn("Can not run callback after channel available", e);
+            }
+        }
+    }
+}
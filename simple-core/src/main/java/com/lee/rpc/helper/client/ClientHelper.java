@@ -3,8 +3,13 @@ package com.lee.rpc.helper.client;
 import com.google.common.hash.Hashing;
 import com.google.common.net.InetAddresses;
 import com.lee.rpc.RpcException;
+import com.lee.rpc.RpcMethodUnit;
 import com.lee.rpc.annotation.RpcClient;
 import com.lee.rpc.helper.RpcHelper;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.InetAddress;
@@ -12,9 +17,9 @@ import java.net.InetSocketAddress;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import static com.lee.rpc.helper.RpcHelper.ZOOKEEPER_PREFIX;
 import static com.lee.rpc.util.exception.ErrorType.RPC_CLIENT_STOP;
@@ -37,59 +42,62 @@ public class ClientHelper {
      */
     private static final NettyClient NETTY_CLIENT = new NettyClient();
 
-    /**
-     * 使用ConcurrentHashMap的目的是减少锁的竞争，也就是同一个hash桶里面才存在锁的竞争
-     */
-    private static final Map<Long, Task> RESULTS = new ConcurrentHashMap<>();
-
     /**
      * 记录一下当前客户端的实际个数，也就是每一个serviceId都对应着一个ClientProxy
      */
     private static final Map<Integer, ClientProxy> CLIENTS = new ConcurrentHashMap<>();
 
     /**
-     * 一个假的task，什么事情都不做
+     * 所有请求的超时共用一个时间轮，到期的时候直接把对应的Task设置成超时，不需要为每一个请求阻塞一个线程或者创建一个定时任务
+     * 精度10毫秒就够了，超时本来就是一个兜底的机制
      */
-    private static final Callable<Object> DUMMY_TASK = () -> null;
+    static final Timer TIMER = new HashedWheelTimer(
+            new DefaultThreadFactory("rpc-client-timer", true), 10, TimeUnit.MILLISECONDS
+    );
 
     private ClientHelper() {
     }
 
-    public static class Task extends FutureTask<Object> {
+    /**
+     * 等待回复的一方，发送之前放到RpcRequest里面，由RpcClientEncoder注册到当前Channel的PendingRequests里面，
+     * 由RpcClientDecoder在IO线程里面完成它
+     * 1. 同步调用使用每一个线程自己的SyncWaiter，不需要每次都创建
+     * 2. 异步调用使用AsyncTask，直接把这个future交给调用者
+     * 3. 流式调用使用RpcStream
+     */
+    public interface Task {
+
+        /**
+         * @param requestId 回复对应的请求，同一个SyncWaiter会被多次使用，需要使用它来判断是不是当前正在等待的请求
+         * @param value     服务器返回的结果，null表示没有返回值，RpcException表示出错了
+         */
+        void setValue(long requestId, Object value);
+
+        /**
+         * 请求还在RpcRequestBatcher的队列里面的时候调用者可能已经超时或者不再需要结果了，这个时候PendingRequests.cancel
+         * 找不到它，encoder在注册之前通过这个方法检查，已经放弃的请求直接丢掉，不会再发送给服务器
+         *
+         * @param requestId 需要发送的请求
+         * @return 调用者已经不再等待这个请求的结果的时候返回true
+         */
+        boolean isAbandoned(long requestId);
+    }
 
-        public Task() {
-            super(DUMMY_TASK);
-        }
+    public static class AsyncTask extends CompletableFuture<Object> implements Task {
 
-        public void setValue(Object object) {
+        @Override
+        public void setValue(long requestId, Object object) {
             if (object instanceof RpcException) {
-                super.setException((RpcException) object);
-            } else {
-                super.set(object);
+                super.completeExceptionally((RpcException) object);
+            } else if (!super.complete(object)) {
+                //已经超时了，如果是还没有反序列化的body，需要在这里释放掉
+                ReferenceCountUtil.release(object);
             }
         }
-    }
-
-    public static void removeTask(Long requestId) {
-        RESULTS.remove(requestId);
-    }
-
-    public static Task putTask(Long requestId) {
-        Task task = new Task();
-        RESULTS.putIfAbsent(requestId, task);
-        return task;
-    }
 
-    public static void setValue(Long requestId, Object value) {
-        Task task = RESULTS.remove(requestId);
-        if (task != null) {
-            task.setValue(value);
-        } else {
-            log.warn(
-                    "RequestId {} does not exist, but service has processed, maybe current operation executing timeout, " +
-                            "retry another request send to service",
-                    requestId
-            );
+        @Override
+        public boolean isAbandoned(long requestId) {
+            return isDone();
         }
     }
 
@@ -100,16 +108,16 @@ public class ClientHelper {
             clientProxy.setShutdown(true);
         }
 
-        NETTY_CLIENT.shutdown();
-
         //把还没有处理的task直接设置成失败，可能存在服务器已经接受到了请求，正在处理，或者服务器端已经处理完成了,准备回复
         //这个地方只是客户端的收尾工作，也就是把那些没有及时得到回复的请求终止掉，防止客户端一直等待
-        for (Map.Entry<Long, Task> results : RESULTS.entrySet()) {
-            Task result = results.getValue();
-            result.setValue(
-                    new RpcException().withStatus(RPC_CLIENT_STOP).withError("Client is shutting down")
-            );
+        //每一个Channel的PendingRequests都是交给自己的EventLoop去处理的，所以需要在EventLoop关闭之前做
+        RpcException exception = new RpcException().withStatus(RPC_CLIENT_STOP).withError("Client is shutting down");
+        for (ClientProxy clientProxy : CLIENTS.values()) {
+            clientProxy.failPending(exception);
         }
+
+        TIMER.stop();
+        NETTY_CLIENT.shutdown();
     }
 
     public static <T> T getClient(Class<T> clazz) {
@@ -125,7 +133,9 @@ public class ClientHelper {
                     addresses = Collections.singletonList(createInetAddress(location));
                 }
 
-                ClientProxy clientProxy = new ClientProxy(addresses, NETTY_CLIENT, serviceId);
+                ClientProxy clientProxy = new ClientProxy(
+                        addresses, NETTY_CLIENT, serviceId, rpcClient
+                );
 
                 CLIENTS.put(serviceId, clientProxy);
 
@@ -137,6 +147,31 @@ public class ClientHelper {
         throw new RpcException("Class is not interface, @RpcClient only annotated on interface " + clazz);
     }
 
+    /**
+     * 拿到某一个方法的结果缓存，用来在数据变化的时候invalidate，或者查看命中率，参考RpcMethod.cacheTtlMillis
+     *
+     * @param clazz      使用@RpcClient标注的接口，必须已经通过getClient创建过
+     * @param methodName 服务器端的方法名字，异步方法的Async后缀需要去掉，同步和异步两个版本共用同一个缓存
+     * @return 没有开启缓存的时候返回null
+     */
+    public static ResultCache getResultCache(Class<?> clazz, String methodName) {
+        RpcClient rpcClient = clazz.getDeclaredAnnotation(RpcClient.class);
+        if (rpcClient == null) {
+            throw new RpcException("Class is not a valid RpcClient, no @RpcClient annotated on class " + clazz);
+        }
+
+        RpcServiceClientUnit clientUnit = RpcHelper.getRpcClientUnit(generateServiceId(rpcClient.service()));
+        if (clientUnit == null) {
+            return null;
+        }
+        for (RpcMethodUnit methodUnit : clientUnit.getMethodIdMapping().values()) {
+            if (methodUnit.getMetadata().getMethodName().equals(methodName)) {
+                return methodUnit.getResultCache();
+            }
+        }
+        return null;
+    }
+
     private static int generateServiceId(String name) {
         int serviceId = Hashing.murmur3_32().hashString(name, UTF_8).asInt();
         while (serviceId < 0) {
@@ -3,29 +3,46 @@ package com.lee.rpc.helper.client;
 import com.lee.rpc.RpcException;
 import com.lee.rpc.RpcMethodUnit;
 import com.lee.rpc.RpcRequest;
+import com.lee.rpc.annotation.RpcClient;
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.helper.RpcHelper;
+import com.lee.rpc.helper.RpcRequestBatcher;
 import com.lee.rpc.helper.Weight;
+import com.lee.rpc.helper.client.ClientHelper.AsyncTask;
 import com.lee.rpc.helper.client.ClientHelper.Task;
+import com.lee.rpc.helper.recycler.ByteBufInputStreamRecycler;
+import com.lee.rpc.helper.recycler.ByteBufOutputStreamRecycler;
 import com.lee.rpc.helper.recycler.RpcRequestRecycler;
 import com.lee.rpc.util.SnowFlakeIdGenerator;
 import com.lee.rpc.util.exception.ApplicationException;
+import com.lee.rpc.util.exception.ErrorType;
 import com.lee.rpc.util.exception.RetryException;
+import com.lee.rpc.util.stream.ByteBufInputStream;
+import com.lee.rpc.util.stream.ByteBufOutputStream;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.lee.rpc.helper.RpcHelper.*;
-import static com.lee.rpc.helper.client.ClientHelper.putTask;
-import static com.lee.rpc.helper.client.ClientHelper.removeTask;
 import static com.lee.rpc.util.Constant.*;
+import static com.lee.rpc.util.exception.ErrorType.CHANNEL_INACTIVE;
+import static com.lee.rpc.util.exception.ErrorType.CLIENT_SERIALIZER_ERROR;
+import static com.lee.rpc.util.exception.ErrorType.SERVICE_BUSY;
+import static com.lee.rpc.util.exception.ErrorType.TIMEOUT;
 
 /**
  * 每一个使用@RpcClient标注的类都需要指定访问的服务，也就是确定它需要访问那个服务，每一个服务只能够发布到一个端口上面去
@@ -40,73 +57,739 @@ public class ClientProxy {
     private static final ThreadLocal<SnowFlakeIdGenerator>
             ID_GENERATOR = ThreadLocal.withInitial(RpcHelper::createIdGenerator);
     private static final int RETRY_COUNT = 3;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+    /**
+     * 同步调用的超时是由时间轮来完成的，调用线程多等这么久只是防止时间轮出了问题以后一直等下去
+     */
+    private static final long TIMER_GRACE_MILLIS = 1000;
+    private static final Object RETRY_NEXT = new Object();
+    private static final Object UNAVAILABLE = new Object();
 
     private final KetamaChannel ketamaChannel = new KetamaChannel();
+    private final ChannelAvailability availability = new ChannelAvailability();
+    private final ConcurrencyLimiter limiter;
+    private final RetryBudget retryBudget;
+    private final SingleFlight singleFlight = new SingleFlight();
     private final List<InetSocketAddress> addresses;
     private final int serviceId;
     private final NettyClient nettyClient;
 
+    private int maxFrameLength = ProtocolHelper.DEFAULT_MAX_FRAME_LENGTH;
+    private int batchSize;
+    private long batchDelayMicros;
+    private boolean deserializeOnCaller;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
     private boolean isShutdown;
 
     public ClientProxy(List<InetSocketAddress> addresses, NettyClient client, int serviceId) {
         this.addresses = addresses;
         this.nettyClient = client;
         this.serviceId = serviceId;
+        this.limiter = null;
+        this.retryBudget = null;
+        prepareChannels(client);
+    }
+
+    /**
+     * 配置需要在建立连接之前就设置好，因为协商协议版本的时候需要使用
+     *
+     * @param rpcClient 接口上面标注的@RpcClient
+     */
+    public ClientProxy(List<InetSocketAddress> addresses, NettyClient client, int serviceId, RpcClient rpcClient) {
+        this.addresses = addresses;
+        this.nettyClient = client;
+        this.serviceId = serviceId;
+        this.maxFrameLength = rpcClient.maxFrameLength();
+        this.batchSize = rpcClient.batchSize();
+        this.batchDelayMicros = rpcClient.batchDelayMicros();
+        this.deserializeOnCaller = rpcClient.deserializeOnCaller();
+        this.timeoutMillis = rpcClient.timeoutMillis();
+        this.limiter = rpcClient.maxConcurrency() > 0 ? new ConcurrencyLimiter(rpcClient.maxConcurrency()) : null;
+        this.retryBudget = new RetryBudget(rpcClient.retryBudgetPercent(), rpcClient.minRetriesPerSecond(),
+                rpcClient.retryBackoffMillis(), rpcClient.maxRetryBackoffMillis());
         prepareChannels(client);
     }
 
     /**
      * 这个调用是我们使用javassist生成的类来调用的，不是显示自己调用的
      *
-     * @param unit      需要调用那个方法
-     * @param parameter 调用方法的参数
+     * @param unit          需要调用那个方法
+     * @param parameter     调用方法的参数
+     * @param timeoutMillis 方法上面@RpcMethod指定的超时时间，小于等于0表示使用@RpcClient上面的配置
      * @return 返回调用后的结果
      */
-    public Object invoke(RpcMethodUnit unit, Object parameter) {
-        Object result;
-        RpcRequest request = createRpcRequest(unit, parameter);
-        while (true) {
-            if (isShutdown) {
-                throw new RpcException("Client is stopping, can not accept any Request");
+    public Object invoke(RpcMethodUnit unit, Object parameter, long timeoutMillis) {
+        RpcBatch<?> batch = RpcBatch.recording();
+        if (batch != null) {
+            //在RpcBatch.call里面，只需要记录下来，execute的时候再发送
+            batch.record(this, unit, parameter, timeoutMillis);
+            return null;
+        }
+        if (unit.getReducer() != null) {
+            return join(broadcast(unit, parameter, timeoutMillis));
+        }
+        if (unit.getLatencyTracker() != null || unit.isCoalesce()) {
+            //对冲的时候同时会有两个请求在等待，合并的时候多个调用者等待同一个请求，SyncWaiter只能够等待当前线程自己的requestId，
+            //所以直接使用异步的逻辑
+            return join(invokeAsync(unit, parameter, timeoutMillis));
+        }
+
+        long timeout = resolveTimeout(timeoutMillis);
+        //参数在调用线程里面序列化，序列化失败直接抛给调用者，重试的时候也不需要再序列化一次
+        ByteBuf encoded = encodeParameter(unit, parameter);
+        ResultCache cache = unit.getResultCache();
+        ResultCache.Key key = null;
+        if (cache != null) {
+            key = cache.key(encoded);
+            Object cached = cache.get(key);
+            if (cached != ResultCache.MISS) {
+                ReferenceCountUtil.release(encoded);
+                return cached;
+            }
+        }
+        try {
+            int retryCount = 0;
+            while (true) {
+                if (isShutdown) {
+                    throw new RpcException("Client is stopping, can not accept any Request");
+                }
+
+                //发送出去的RpcRequest已经在encoder里面被回收了，所以每一次都需要重新创建一个
+                long generation = availability.generation();
+                Object result = sendRequest(createRpcRequest(unit, parameter, encoded), retryCount, timeout);
+                if (result == RETRY_NEXT) {
+                    retryCount++;
+                    awaitRetry(retryCount);
+                } else if (result == UNAVAILABLE) {
+                    awaitAvailable(generation, timeout);
+                } else {
+                    if (retryBudget != null) {
+                        retryBudget.deposit();
+                    }
+                    if (cache != null) {
+                        cache.put(key, result);
+                    }
+                    return result;
+                }
+            }
+        } finally {
+            ReferenceCountUtil.release(encoded);
+        }
+    }
+
+    /**
+     * 和invoke一样由javassist生成的类来调用，区别在于不会阻塞调用线程，返回值为CompletableFuture的方法都走这个逻辑
+     * 注意：future是在IO线程里面完成的，所以后续的回调如果比较耗时，请使用thenApplyAsync之类的方法切换到自己的线程池
+     *
+     * @param unit          需要调用那个方法
+     * @param parameter     调用方法的参数
+     * @param timeoutMillis 方法上面@RpcMethod指定的超时时间，小于等于0表示使用@RpcClient上面的配置
+     * @return 返回一个future，服务器返回结果以后完成
+     */
+    public CompletableFuture<Object> invokeAsync(RpcMethodUnit unit, Object parameter, long timeoutMillis) {
+        RpcBatch<?> batch = RpcBatch.recording();
+        if (batch != null) {
+            return batch.record(this, unit, parameter, timeoutMillis);
+        }
+        if (unit.getReducer() != null) {
+            return broadcast(unit, parameter, timeoutMillis);
+        }
+        //和同步调用一样，序列化失败直接抛给调用者，而不是通过future返回
+        ByteBuf encoded = encodeParameter(unit, parameter);
+        ResultCache cache = unit.getResultCache();
+        if (cache == null) {
+            return coalesceOrSend(unit, parameter, encoded, timeoutMillis);
+        }
+
+        //encoded在请求完成的时候就释放了，所以key需要在发送之前创建
+        ResultCache.Key key = cache.key(encoded);
+        Object cached = cache.get(key);
+        if (cached != ResultCache.MISS) {
+            ReferenceCountUtil.release(encoded);
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<Object> result = coalesceOrSend(unit, parameter, encoded, timeoutMillis);
+        result.thenAccept(value -> cache.put(key, value));
+        //缓存使用的是内部的future，返回给调用者的是一个单独的future，调用者自己complete的值不会被放到缓存里面
+        return copy(result);
+    }
+
+    /**
+     * 和SingleFlight一样，异常原样传过去，不会像thenApply那样包装成CompletionException
+     */
+    private static CompletableFuture<Object> copy(CompletableFuture<Object> source) {
+        CompletableFuture<Object> copy = new CompletableFuture<>();
+        source.whenComplete((value, cause) -> {
+            if (cause == null) {
+                copy.complete(value);
             } else {
-                result = sendRequest(request);
-                if (result != request) {
-                    break;
+                copy.completeExceptionally(cause);
+            }
+        });
+        return copy;
+    }
+
+    private CompletableFuture<Object> coalesceOrSend(RpcMethodUnit unit, Object parameter, ByteBuf encoded,
+                                                     long timeoutMillis) {
+        if (unit.isCoalesce()) {
+            return singleFlight.execute(unit, encoded, () -> sendAsync(unit, parameter, encoded, timeoutMillis));
+        }
+        return sendAsync(unit, parameter, encoded, timeoutMillis);
+    }
+
+    private CompletableFuture<Object> sendAsync(RpcMethodUnit unit, Object parameter, ByteBuf encoded,
+                                                long timeoutMillis) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        result.whenComplete((value, cause) -> ReferenceCountUtil.release(encoded));
+        sendRequestAsync(unit, parameter, encoded, 0, resolveTimeout(timeoutMillis), result);
+        return result;
+    }
+
+    /**
+     * 参考RpcMethod.broadcast，参数只序列化一次，并行的发送给每一个地址的一个Channel，全部完成或者超时以后交给Reducer合并
+     * 每一个RpcServer只发送一次，不会重试，也不经过ConcurrencyLimiter，结果本身就是所有RpcServer的集合，换一个RpcServer重试
+     * 没有意义。缓存和合并相同的请求也不支持
+     */
+    private CompletableFuture<Object> broadcast(RpcMethodUnit unit, Object parameter, long timeoutMillis) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        if (isShutdown) {
+            result.completeExceptionally(new RpcException("Client is stopping, can not accept any Request"));
+            return result;
+        }
+
+        long timeout = resolveTimeout(timeoutMillis);
+        ByteBuf encoded = encodeParameter(unit, parameter);
+        List<CompletableFuture<Object>> shards = new ArrayList<>();
+        try {
+            for (Channel channel : ketamaChannel.getChannelPerAddress()) {
+                shards.add(sendShard(unit, parameter, encoded, channel, timeout));
+            }
+        } finally {
+            //每一个请求在createRpcRequest的时候已经retain了，这里释放调用者自己的那一份
+            ReferenceCountUtil.release(encoded);
+        }
+
+        if (shards.isEmpty()) {
+            result.completeExceptionally(new RetryException("No channel for service " + serviceId));
+            return result;
+        }
+        CompletableFuture.allOf(shards.toArray(new CompletableFuture[0]))
+                .whenComplete((value, cause) -> reduce(unit, shards, result));
+        return result;
+    }
+
+    private CompletableFuture<Object> sendShard(RpcMethodUnit unit, Object parameter, ByteBuf encoded,
+                                                Channel channel, long timeoutMillis) {
+        CompletableFuture<Object> shard = new CompletableFuture<>();
+        if (!isAvailable(channel)) {
+            shard.completeExceptionally(new RpcException().withStatus(CHANNEL_INACTIVE)
+                    .withError("Channel " + channel.attr(ADDRESS).get() + " is not available"));
+            return shard;
+        }
+
+        RpcRequest request = createRpcRequest(unit, parameter, encoded);
+        if (sendOneWay(request, channel, timeoutMillis)) {
+            shard.complete(null);
+            return shard;
+        }
+        long requestId = request.getRequestId();
+        AsyncTask task = new AsyncTask();
+        Timeout timeout = newTimeout(channel, requestId, task, timeoutMillis);
+        write(channel, request.task(task).deadline(deadline(timeoutMillis)));
+        task.whenComplete((value, cause) -> {
+            timeout.cancel();
+            if (cause != null) {
+                shard.completeExceptionally(cause);
+                return;
+            }
+            try {
+                shard.complete(deserializeResult(unit, value));
+            } catch (ApplicationException e) {
+                shard.completeExceptionally(e);
+            }
+        });
+        return shard;
+    }
+
+    /**
+     * 在最后一个完成的RpcServer的IO线程或者时间轮的线程里面执行
+     */
+    private void reduce(RpcMethodUnit unit, List<CompletableFuture<Object>> shards, CompletableFuture<Object> result) {
+        List<Object> values = new ArrayList<>(shards.size());
+        Throwable failure = null;
+        for (CompletableFuture<Object> shard : shards) {
+            try {
+                values.add(shard.join());
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+
+        if (failure != null) {
+            if (!unit.isPartialResult() || values.isEmpty()) {
+                result.completeExceptionally(failure instanceof RpcException ?
+                        new ApplicationException(failure) : failure);
+                return;
+            }
+            log.warn("Broadcast {} of service {} got {} of {} results, first failure {}",
+                    unit.getMetadata().getMethodName(), serviceId, values.size(), shards.size(), failure.getMessage());
+        }
+        try {
+            result.complete(unit.getReducer().reduce(values));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 返回值为Iterator或者Stream的方法走这个逻辑，请求发送出去以后马上返回，元素在后面陆续到达，参考RpcStream
+     * 只有在请求发送出去之前才会换一个Channel重试，发送出去以后就不再重试了
+     *
+     * @param unit          需要调用那个方法
+     * @param parameter     调用方法的参数
+     * @param timeoutMillis 两个元素之间最多等待多长时间，小于等于0表示使用@RpcClient上面的配置
+     * @return 返回一个RpcStream，调用者可以直接当作Iterator来使用，或者通过stream()转换成Stream
+     */
+    public RpcStream invokeStream(RpcMethodUnit unit, Object parameter, long timeoutMillis) {
+        if (RpcBatch.recording() != null) {
+            throw new RpcException(
+                    "Stream method " + unit.getMetadata().getMethodName() + " can not be called in RpcBatch"
+            );
+        }
+        long timeout = resolveTimeout(timeoutMillis);
+        ByteBuf encoded = encodeParameter(unit, parameter);
+        try {
+            while (true) {
+                if (isShutdown) {
+                    throw new RpcException("Client is stopping, can not accept any Request");
                 }
 
+                long generation = availability.generation();
+                RpcRequest request = createRpcRequest(unit, parameter, encoded);
+                long requestId = request.getRequestId();
+                Channel channel = ketamaChannel.getChannel(requestId);
+                if (isAvailable(channel)) {
+                    RpcStream stream = new RpcStream(requestId, unit, PendingRequests.of(channel), timeout);
+                    RpcRequestBatcher.write(channel, request.task(stream));
+                    return stream;
+                }
+                RpcRequestRecycler.recycle(request);
+                awaitAvailable(generation, timeout);
+            }
+        } finally {
+            ReferenceCountUtil.release(encoded);
+        }
+    }
+
+    private void sendRequestAsync(RpcMethodUnit unit, Object parameter, ByteBuf encoded, int retryCount,
+                                  long timeoutMillis, CompletableFuture<Object> result) {
+        if (isShutdown) {
+            result.completeExceptionally(new RpcException("Client is stopping, can not accept any Request"));
+            return;
+        }
+
+        if (limiter != null && !limiter.tryAcquire()) {
+            //和同步调用一样在本地排队，只是这里不阻塞调用线程，有请求回复的时候由IO线程发送
+            new PermitCallback(result, timeoutMillis).enqueue(
+                    () -> doSendRequestAsync(unit, parameter, encoded, retryCount, timeoutMillis, result)
+            );
+            return;
+        }
+        doSendRequestAsync(unit, parameter, encoded, retryCount, timeoutMillis, result);
+    }
+
+    /**
+     * 调用之前已经拿到了ConcurrencyLimiter的许可，请求没有发送出去或者收到结果以后都需要还回去
+     */
+    private void doSendRequestAsync(RpcMethodUnit unit, Object parameter, ByteBuf encoded, int retryCount,
+                                    long timeoutMillis, CompletableFuture<Object> result) {
+        long generation = availability.generation();
+        RpcRequest request = createRpcRequest(unit, parameter, encoded);
+        long requestId = request.getRequestId();
+        Channel channel = ketamaChannel.getChannel(requestId);
+        if (!isAvailable(channel)) {
+            //和同步调用一样，没有可用的Channel的时候等待，只是这里不阻塞调用线程，而是在有Channel变成可用的时候由IO线程重新发送
+            RpcRequestRecycler.recycle(request);
+            releasePermit();
+            new AvailableCallback(result, timeoutMillis).register(
+                    generation, () -> sendRequestAsync(unit, parameter, encoded, retryCount, timeoutMillis, result)
+            );
+            return;
+        }
+        if (sendOneWay(request, channel, timeoutMillis)) {
+            releasePermit();
+            result.complete(null);
+            return;
+        }
+
+        long start = System.nanoTime();
+        long deadline = deadline(timeoutMillis);
+        AsyncTask task = new AsyncTask();
+        Timeout timeout = newTimeout(channel, requestId, task, timeoutMillis);
+
+        Task registered = task;
+        Timeout hedge = null;
+        long hedgeDelayMicros = hedgeDelayMicros(unit, timeoutMillis);
+        if (hedgeDelayMicros > 0) {
+            HedgedTask hedged = new HedgedTask(task, requestId, PendingRequests.of(channel));
+            hedge = scheduleHedge(unit, parameter, encoded, channel, hedged, hedgeDelayMicros, deadline);
+            registered = hedged;
+        }
+        write(channel, request.task(registered).deadline(deadline));
+
+        Timeout hedgeTimeout = hedge;
+        task.whenComplete((value, cause) -> {
+            timeout.cancel();
+            releasePermit(start, cause);
+            if (hedgeTimeout != null && hedgeTimeout.cancel()) {
+                //第二个请求还没有发送，scheduleHedge里面多持有的那一份引用在这里释放
+                ReferenceCountUtil.release(encoded);
+            }
+            if (cause == null) {
+                if (unit.getLatencyTracker() != null) {
+                    unit.getLatencyTracker().record(System.nanoTime() - start);
+                }
+                if (retryBudget != null) {
+                    retryBudget.deposit();
+                }
                 try {
-                    TimeUnit.MILLISECONDS.sleep(10);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RpcException("Interrupt by any other thread, break send logic", e);
+                    result.complete(deserializeResult(unit, value));
+                } catch (ApplicationException e) {
+                    result.completeExceptionally(e);
+                }
+            } else if (hasStatus(cause, TIMEOUT)) {
+                //超时的处理逻辑和同步调用一样，重试次数+1以后换一个RpcServer去执行，所以这里同样需要服务本身保证幂等性
+                if (retryCount > RETRY_COUNT) {
+                    result.completeExceptionally(new RetryException(
+                            "Can not send request to server with " + retryCount + " retry", cause
+                    ));
+                } else {
+                    retryAsync(unit, parameter, encoded, retryCount + 1, timeoutMillis, result);
+                }
+            } else if (hasStatus(cause, CHANNEL_INACTIVE)) {
+                if (!isIdempotent(unit) || retryCount > RETRY_COUNT) {
+                    result.completeExceptionally(inactiveException(unit, retryCount, (RpcException) cause));
+                } else {
+                    retryAsync(unit, parameter, encoded, retryCount + 1, timeoutMillis, result);
                 }
+            } else if (hasStatus(cause, SERVICE_BUSY)) {
+                //服务器已经在DelayWorker里面等待过了才会返回SERVICE_BUSY，所以这里直接换一个RpcServer重新发送
+                log.info("Service busy, send to another com.lee.rpc service {}", cause.getMessage());
+                if (retryCount > RETRY_COUNT) {
+                    result.completeExceptionally(new RetryException(
+                            "Service busy after " + retryCount + " retry", cause
+                    ));
+                } else {
+                    retryAsync(unit, parameter, encoded, retryCount + 1, timeoutMillis, result);
+                }
+            } else {
+                result.completeExceptionally(new ApplicationException(cause));
             }
-            request.requestId(ID_GENERATOR.get().generatorKey());
+        });
+    }
+
+    /**
+     * 和同步调用的awaitRetry一样先扣预算，只是退避的时候不阻塞IO线程，而是交给时间轮到期以后再发送
+     */
+    private void retryAsync(RpcMethodUnit unit, Object parameter, ByteBuf encoded, int retryCount,
+                            long timeoutMillis, CompletableFuture<Object> result) {
+        if (retryBudget == null) {
+            sendRequestAsync(unit, parameter, encoded, retryCount, timeoutMillis, result);
+            return;
+        }
+        if (!retryBudget.tryWithdraw()) {
+            result.completeExceptionally(budgetExhausted(retryCount));
+            return;
+        }
+        long delay = retryBudget.backoffMillis(retryCount);
+        if (delay > 0) {
+            ClientHelper.TIMER.newTimeout(
+                    t -> sendRequestAsync(unit, parameter, encoded, retryCount, timeoutMillis, result),
+                    delay, TimeUnit.MILLISECONDS
+            );
+        } else {
+            sendRequestAsync(unit, parameter, encoded, retryCount, timeoutMillis, result);
         }
-        return result;
     }
 
-    private Object sendRequest(RpcRequest request) {
-        Channel channel = ketamaChannel.getChannel(request.getRequestId());
-        if (channel.isWritable()) {
+    /**
+     * 同步调用每一次重试之前调用，预算用完的时候直接失败，否则按照退避的时间等待以后再发送
+     */
+    private void awaitRetry(int retryCount) {
+        if (retryBudget == null) {
+            return;
+        }
+        if (!retryBudget.tryWithdraw()) {
+            throw budgetExhausted(retryCount);
+        }
+        long delay = retryBudget.backoffMillis(retryCount);
+        if (delay > 0) {
             try {
-                Task task = putTask(request.getRequestId());
-                channel.writeAndFlush(request);
-                return task.get(30, TimeUnit.SECONDS);
-            } catch (TimeoutException e) {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RpcException("Interrupt by any other thread, break send logic", e);
+            }
+        }
+    }
+
+    private RetryException budgetExhausted(int retryCount) {
+        return new RetryException("Retry budget of service " + serviceId + " exhausted, can not send retry " +
+                retryCount + ", servers may be overloaded");
+    }
+
+    /**
+     * 异步调用第一次发送的时候使用，在RpcBatch.execute里面的时候交给RpcBatch按照Channel收集起来，最后一起写出去
+     */
+    private static void write(Channel channel, RpcRequest request) {
+        RpcBatch<?> batch = RpcBatch.collecting();
+        if (batch != null) {
+            batch.collect(channel, request);
+        } else {
+            RpcRequestBatcher.write(channel, request);
+        }
+    }
+
+    /**
+     * 协议版本还没有协商完成的Channel和不可写的Channel一样，都需要换一个Channel继续执行
+     */
+    private boolean isAvailable(Channel channel) {
+        return KetamaChannel.isAvailable(channel);
+    }
+
+    /**
+     * hash环上面所有的Channel都不可用的时候调用，有Channel变成可用的时候马上返回，而不是固定的sleep以后再去轮询
+     *
+     * @param generation 选择Channel之前记录的generation，参考ChannelAvailability
+     */
+    private void awaitAvailable(long generation, long timeoutMillis) {
+        try {
+            if (!availability.await(generation, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new RetryException(
+                        "No available channel for service " + serviceId + " in " + timeoutMillis + " ms"
+                );
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RpcException("Interrupt by any other thread, break send logic", e);
+        }
+    }
+
+    /**
+     * 同步调用在本地排队，最多等待timeoutMillis，没有拿到的时候request还没有写出去，需要自己回收
+     */
+    private void acquirePermit(RpcRequest request, long timeoutMillis) {
+        if (limiter == null) {
+            return;
+        }
+
+        try {
+            if (limiter.acquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            RpcRequestRecycler.recycle(request);
+            Thread.currentThread().interrupt();
+            throw new RpcException("Interrupt by any other thread, break send logic", e);
+        }
+        RpcRequestRecycler.recycle(request);
+        throw limitExceeded(timeoutMillis);
+    }
+
+    private RetryException limitExceeded(long timeoutMillis) {
+        return new RetryException("Too many concurrent requests for service " + serviceId + ", limit " +
+                limiter.getLimit() + ", can not send in " + timeoutMillis + " ms");
+    }
+
+    private void releasePermit() {
+        if (limiter != null) {
+            limiter.release();
+        }
+    }
+
+    /**
+     * @param outcome 服务器返回的结果或者错误，超时和SERVICE_BUSY说明服务器已经过载了
+     */
+    private void releasePermit(long start, Object outcome) {
+        if (limiter != null) {
+            limiter.release(System.nanoTime() - start, hasStatus(outcome, TIMEOUT) || hasStatus(outcome, SERVICE_BUSY));
+        }
+    }
+
+    /**
+     * IO线程在Channel变成可写或者协商完成的时候调用，唤醒等待可用Channel的调用者
+     */
+    public void channelAvailable() {
+        availability.signal();
+    }
+
+    /**
+     * @return 不需要对冲或者p95还没有足够的样本的时候返回-1，单位是微秒
+     */
+    private static long hedgeDelayMicros(RpcMethodUnit unit, long timeoutMillis) {
+        LatencyTracker tracker = unit.getLatencyTracker();
+        if (tracker == null) {
+            return -1;
+        }
+        long delay = unit.getHedgeDelayMillis() > 0 ?
+                TimeUnit.MILLISECONDS.toMicros(unit.getHedgeDelayMillis()) : tracker.p95Micros();
+        //超时以后会换一个RpcServer重试，这个时候对冲已经没有意义了
+        return delay < TimeUnit.MILLISECONDS.toMicros(timeoutMillis) ? delay : -1;
+    }
+
+    /**
+     * 第一个请求发送出去以后delayMicros还没有回复，在另外一个RpcServer的Channel上面使用新的requestId再发送一次，参考HedgedTask
+     * 到期之前调用可能已经结束了，encoded会被释放，所以这里需要多持有一份引用
+     */
+    private Timeout scheduleHedge(RpcMethodUnit unit, Object parameter, ByteBuf encoded, Channel primary,
+                                  HedgedTask hedged, long delayMicros, long deadline) {
+        if (encoded != null) {
+            encoded.retain();
+        }
+        return ClientHelper.TIMER.newTimeout(t -> {
+            try {
+                RpcRequest request = createRpcRequest(unit, parameter, encoded);
+                //同一个地址按照权重会有多个Channel，需要排除的是第一个请求所在的RpcServer，而不只是那一个Channel
+                Channel channel = ketamaChannel.getChannel(request.getRequestId(), primary.attr(ADDRESS).get());
+                if (!isAvailable(channel) || retryBudget != null && !retryBudget.tryWithdraw()) {
+                    //只有一个RpcServer，或者别的RpcServer都不可用，或者预算已经用完了(对冲和重试一样会增加服务器的负担)，
+                    //只能够继续等第一个请求
+                    RpcRequestRecycler.recycle(request);
+                    return;
+                }
+                if (hedged.hedge(request.getRequestId(), PendingRequests.of(channel))) {
+                    RpcRequestBatcher.write(channel, request.task(hedged).deadline(deadline));
+                } else {
+                    //调用已经结束了，对冲请求没有发送出去，令牌还回去留给真正的重试
+                    RpcRequestRecycler.recycle(request);
+                    if (retryBudget != null) {
+                        retryBudget.refund();
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(encoded);
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * 同步调用等待异步的结果，和同步的逻辑一样，异常直接抛给调用者
+     */
+    private static Object join(CompletableFuture<Object> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationException("Interrupted by any other thread, may be client is stopping", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ApplicationException(cause);
+        }
+    }
+
+    private static boolean isIdempotent(RpcMethodUnit unit) {
+        return unit.getMetadata() != null && unit.getMetadata().isIdempotent();
+    }
+
+    private static boolean isOneWay(RpcMethodUnit unit) {
+        return unit.getMetadata() != null && unit.getMetadata().isOneWay();
+    }
+
+    private static RetryException inactiveException(RpcMethodUnit unit, int retryCount, RpcException cause) {
+        if (isIdempotent(unit)) {
+            return new RetryException("Can not send request to server with " + retryCount + " retry", cause);
+        }
+        //不是幂等的方法不知道服务器有没有执行，交给调用者来决定是否需要重试
+        return new RetryException(
+                "Channel inactive before response, method " + unit.getMetadata().getMethodName() +
+                        " is not idempotent and may have been executed", cause
+        );
+    }
+
+    private boolean hasStatus(Object cause, ErrorType status) {
+        return cause instanceof RpcException && ((RpcException) cause).getStatus() == status;
+    }
+
+    /**
+     * 服务器根据这个时间丢掉已经过期的请求，流式方法的超时时间是两个元素之间的间隔，所以不会设置
+     */
+    private static long deadline(long timeoutMillis) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    private long resolveTimeout(long methodTimeoutMillis) {
+        return methodTimeoutMillis > 0 ? methodTimeoutMillis : timeoutMillis;
+    }
+
+    /**
+     * 到期的时候在时间轮的线程里面执行，Task的setValue都是线程安全的，和IO线程同时完成的时候只有先到的那一个会生效
+     */
+    private Timeout newTimeout(Channel channel, long requestId, Task task, long timeoutMillis) {
+        PendingRequests pending = PendingRequests.of(channel);
+        return ClientHelper.TIMER.newTimeout(t -> {
+            pending.cancel(requestId);
+            task.setValue(requestId, new RpcException().withStatus(TIMEOUT)
+                    .withError("Request " + requestId + " timeout after " + timeoutMillis + " ms"));
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 返回RETRY_NEXT表示重试次数+1以后换一个Channel重新发送，UNAVAILABLE表示需要等待有可用的Channel，
+     * 其他的就是服务器返回的结果
+     */
+    private Object sendRequest(RpcRequest request, int retryCount, long timeoutMillis) {
+        acquirePermit(request, timeoutMillis);
+        //request在写出去以后会被encoder回收，所以这里先把requestId记录下来
+        long requestId = request.getRequestId();
+        RpcMethodUnit unit = request.getMethodUnit();
+        Channel channel = ketamaChannel.getChannel(requestId);
+        if (isAvailable(channel)) {
+            if (sendOneWay(request, channel, timeoutMillis)) {
+                releasePermit();
+                return null;
+            }
+
+            long start = System.nanoTime();
+            //同步调用的线程同一时间只有一个请求在等待，所以直接使用当前线程的SyncWaiter，必须在写出去之前arm
+            SyncWaiter waiter = SyncWaiter.current().arm(requestId);
+            Timeout timeout = newTimeout(channel, requestId, waiter, timeoutMillis);
+            Object value;
+            try {
+                RpcRequestBatcher.write(channel, request.task(waiter).deadline(deadline(timeoutMillis)));
+                value = waiter.await(requestId, timeoutMillis + TIMER_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                PendingRequests.of(channel).cancel(requestId);
+                releasePermit();
+                throw new ApplicationException("Interrupted by any other thread, may be client is stopping", e);
+            } finally {
+                timeout.cancel();
+            }
+
+            if (value == SyncWaiter.TIMEOUT) {
+                PendingRequests.of(channel).cancel(requestId);
+                value = new RpcException().withStatus(TIMEOUT).withError("Request " + requestId + " timeout");
+            }
+            releasePermit(start, value);
+
+            if (hasStatus(value, TIMEOUT)) {
                 //注意：这个地方可能会导致消息重复发送的问题，因为服务端可能已经在处理该消息了
                 //只是客户端链接断开了而已,特别注意更新和插入的动作可能会导致状态发生变化，
                 //如果重复了，那么可能会导致一些不可预期的行为，框架部分代码只能够保证超时重试
                 //由服务设计者来决定幂等性
-                removeTask(request.getRequestId());
                 if (channel.isActive()) {
-                    if (request.getRetryCount() > RETRY_COUNT) {
+                    if (retryCount > RETRY_COUNT) {
                         throw new RetryException(
-                                "Can not send request to server with " + request.getRetryCount() + " retry", e
+                                "Can not send request to server with " + retryCount + " retry", (RpcException) value
                         );
                     } else {
                         //最大的重试次数一定，那么这个地方就需要把重试次数+1，然后选择另外一个RpcServer去执行
-                        return request.withRetryCount(request.getRetryCount() + 1);
+                        return RETRY_NEXT;
                     }
                 } else {
                     //发送该Request的Channel已经挂掉，那么需要重新选择一个Channel去执行
@@ -114,46 +797,104 @@ public class ClientProxy {
                     //但是由于选择了另外一个RpcServer去执行，所以可能会导致多个RpcServer执行同一个数据的行为
                     //也就是在超时的时候选择另外一个RpcServer去执行的时候，可能会导致之前的数据还是在执行的情况，那么保证微服务的
                     //幂等性就是需要我们考虑的了，对于查询来说，没有问题，查询天然就是幂等性的
-                    return request.withRetryCount(request.getRetryCount() + 1);
+                    return RETRY_NEXT;
                 }
-            } catch (ExecutionException e) {
-                removeTask(request.getRequestId());
-                Throwable cause = e.getCause();
-                if (cause instanceof RpcException) {
-                    RpcException exception = (RpcException) cause;
-                    switch (exception.getStatus()) {
-                        case SERVICE_BUSY:
-                            log.info("Service busy, send to another com.lee.rpc service {}", e.getMessage());
-                            return request;
-                        case SERVER_ERROR:
-                        case SERIALIZER_ERROR:
-                        case NOT_SUPPORT_TYPE:
-                        case CLIENT_SERIALIZER_ERROR:
-                        case RPC_SERVER_STOP:
-                        case RPC_CLIENT_STOP:
-                        case NOT_EXIST_SERVICE_ID:
-                        case CLIENT_ERROR:
-                            throw new ApplicationException(cause);
-                        default:
-                            throw new ApplicationException("Can not support ErrorType " + exception.getStatus(), cause);
-                    }
+            }
+
+            if (hasStatus(value, CHANNEL_INACTIVE)) {
+                //服务器可能已经执行了，只有幂等的方法才可以马上换一个RpcServer重新发送
+                if (!isIdempotent(unit) || retryCount > RETRY_COUNT) {
+                    throw inactiveException(unit, retryCount, (RpcException) value);
                 }
-                throw new ApplicationException("Unexpected exception happened", cause);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                removeTask(request.getRequestId());
-                throw new ApplicationException("Interrupted by any other thread, may be client is stopping", e);
-            } catch (Exception e) {
-                removeTask(request.getRequestId());
-                throw new ApplicationException("Unexpected exception happened", e);
+                return RETRY_NEXT;
             }
+
+            if (value instanceof RpcException) {
+                //回复已经从PendingRequests里面删除了，这里只需要根据错误类型来决定是否重试
+                RpcException exception = (RpcException) value;
+                switch (exception.getStatus()) {
+                    case SERVICE_BUSY:
+                        //服务器已经在DelayWorker里面等待过了才会返回SERVICE_BUSY，所以这里直接换一个RpcServer重新发送
+                        log.info("Service busy, send to another com.lee.rpc service {}", exception.getMessage());
+                        if (retryCount > RETRY_COUNT) {
+                            throw new RetryException("Service busy after " + retryCount + " retry", exception);
+                        }
+                        return RETRY_NEXT;
+                    case SERVER_ERROR:
+                    case SERIALIZER_ERROR:
+                    case NOT_SUPPORT_TYPE:
+                    case CLIENT_SERIALIZER_ERROR:
+                    case RPC_SERVER_STOP:
+                    case RPC_CLIENT_STOP:
+                    case NOT_EXIST_SERVICE_ID:
+                    case CLIENT_ERROR:
+                        throw new ApplicationException(exception);
+                    default:
+                        throw new ApplicationException("Can not support ErrorType " + exception.getStatus(), exception);
+                }
+            }
+            return deserializeResult(unit, value);
         } else {
-            //换一个Channel继续执行,因为当前Channel的writeBuffer已经满了，或者当前Channel根本就可以用
-            return request;
+            //KetamaChannel已经跳过了不可用的Channel，还是拿到不可用的说明所有的Channel的writeBuffer都已经满了，
+            //或者都还没有建立好连接，这个时候需要等待有Channel变成可用的。这个request没有写出去，所以需要自己回收
+            RpcRequestRecycler.recycle(request);
+            releasePermit();
+            return UNAVAILABLE;
+        }
+    }
+
+    /**
+     * 单向调用不注册Task，也不需要时间轮，交给Channel以后马上返回，调用者需要马上把许可还回去。deadline还是需要的，服务器排队太久的时候
+     * 直接丢掉。协商出来的版本不支持的时候服务器还是会回复，这个时候按照普通的调用等待回复
+     *
+     * @return 已经按照单向调用发送出去的时候返回true
+     */
+    private boolean sendOneWay(RpcRequest request, Channel channel, long timeoutMillis) {
+        if (!isOneWay(request.getMethodUnit()) || !ProtocolHelper.isOneWaySupported(channel)) {
+            return false;
+        }
+        write(channel, request.oneWay(true).deadline(deadline(timeoutMillis)));
+        return true;
+    }
+
+    /**
+     * deserializeOnCaller为true的时候，decoder返回的是还没有反序列化的body，在这里反序列化以后释放掉
+     */
+    static Object deserializeResult(RpcMethodUnit unit, Object value) {
+        if (!(value instanceof ByteBuf)) {
+            return value;
+        }
+
+        ByteBuf body = (ByteBuf) value;
+        try (ByteBufInputStream in = ByteBufInputStreamRecycler.newInstance(body)) {
+            return unit.deserializeToReturnType(in);
+        } catch (Exception e) {
+            throw new ApplicationException(
+                    new RpcException(e).withStatus(CLIENT_SERIALIZER_ERROR).withError(e.getMessage())
+            );
+        } finally {
+            ReferenceCountUtil.release(body);
+        }
+    }
+
+    private ByteBuf encodeParameter(RpcMethodUnit methodUnit, Object parameter) {
+        if (parameter == null) {
+            return null;
+        }
+
+        ByteBuf buffer = ByteBufAllocator.DEFAULT.directBuffer();
+        try (ByteBufOutputStream out = ByteBufOutputStreamRecycler.newInstance(buffer)) {
+            methodUnit.serializeParameter(parameter, out);
+            return buffer;
+        } catch (Exception e) {
+            ReferenceCountUtil.release(buffer);
+            throw new ApplicationException(
+                    new RpcException(e).withStatus(CLIENT_SERIALIZER_ERROR).withError(e.getMessage())
+            );
         }
     }
 
-    private RpcRequest createRpcRequest(RpcMethodUnit methodUnit, Object parameter) {
+    private RpcRequest createRpcRequest(RpcMethodUnit methodUnit, Object parameter, ByteBuf encoded) {
         //这个地方是在当前线程创建，但是在其他IO线程来释放
         RpcRequest request = RpcRequestRecycler.newInstance(
                 serviceId, ID_GENERATOR.get().generatorKey(), methodUnit.getMethodId()
@@ -166,6 +907,11 @@ public class ClientProxy {
 
         request.setTypeId(parameter == null ? EMPTY_TYPE : OBJECT);
 
+        //encoder只需要把已经序列化好的参数拷贝过去，每一个RpcRequest都持有一份引用，回收的时候释放
+        if (encoded != null) {
+            request.payload(encoded.retainedDuplicate());
+        }
+
         return request;
     }
 
@@ -211,19 +957,10 @@ public class ClientProxy {
         return nettyClient.connect(address, this, serviceId, future -> {
             Channel channel = future.channel();
             if (future.isSuccess()) {
+                //METADATA请求在RpcClientDecoder的channelActive里面发送，同时协商协议版本
                 channel.attr(ADDRESS).set(address);
-                if (!RpcHelper.isClientReady(serviceId)) {
-                    ByteBuf metadata = Unpooled.buffer(16)
-                            .writeInt(serviceId)
-                            .writeLong(METADATA)
-                            .writeByte(METADATA)
-                            .writeByte(METADATA)
-                            .writeShort(EMPTY_VALUE);
-                    channel.writeAndFlush(metadata);
-                } else {
-                    if (zookeeper != null) {
-                        channel.attr(ZOOKEEPER).set(zookeeper);
-                    }
+                if (RpcHelper.isClientReady(serviceId) && zookeeper != null) {
+                    channel.attr(ZOOKEEPER).set(zookeeper);
                 }
                 ketamaChannel.fillChannelWithWeight(channel);
             } else {
@@ -266,12 +1003,32 @@ public class ClientProxy {
 
     public void setShutdown(boolean shutdown) {
         isShutdown = shutdown;
+        if (shutdown) {
+            //唤醒还在等待可用Channel的调用者，让它们马上知道客户端已经停止了
+            availability.signal();
+        }
     }
 
     public int getServiceId() {
         return this.serviceId;
     }
 
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchDelayMicros() {
+        return batchDelayMicros;
+    }
+
+    public boolean isDeserializeOnCaller() {
+        return deserializeOnCaller;
+    }
+
     public void createChannel(final InetSocketAddress address) {
         nettyClient.connect(address, this, serviceId, future -> {
             Channel channel = future.channel();
@@ -284,10 +1041,99 @@ public class ClientProxy {
         });
     }
 
+    /**
+     * 把所有Channel上面还在等待的请求设置成失败，每一个Channel只处理自己的PendingRequests
+     */
+    public void failPending(RpcException exception) {
+        for (Channel channel : ketamaChannel.getChannels()) {
+            PendingRequests pending = PendingRequests.of(channel);
+            if (pending != null) {
+                pending.failAll(exception);
+            }
+        }
+    }
+
     public void removeChannelFromKetama(List<Long> locations) {
         ketamaChannel.removeChannelFrom(locations);
     }
 
+    /**
+     * 异步调用没有可用Channel的时候注册的回调，有Channel变成可用或者超时的时候只会执行其中一个
+     */
+    private class AvailableCallback implements Runnable, TimerTask {
+
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final CompletableFuture<Object> result;
+        private final long timeoutMillis;
+        private Runnable retry;
+        private Timeout timeout;
+
+        AvailableCallback(CompletableFuture<Object> result, long timeoutMillis) {
+            this.result = result;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        void register(long generation, Runnable retry) {
+            this.retry = retry;
+            this.timeout = ClientHelper.TIMER.newTimeout(this, timeoutMillis, TimeUnit.MILLISECONDS);
+            availability.whenAvailable(generation, this);
+        }
+
+        @Override
+        public void run() {
+            if (done.compareAndSet(false, true)) {
+                timeout.cancel();
+                retry.run();
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            if (done.compareAndSet(false, true)) {
+                availability.discard(this);
+                result.completeExceptionally(new RetryException(
+                        "No available channel for service " + serviceId + " in " + timeoutMillis + " ms"
+                ));
+            }
+        }
+    }
+
+    /**
+     * 异步调用超过并发限制的时候在本地排队，拿到许可或者超时的时候只会执行其中一个
+     */
+    private class PermitCallback extends ConcurrencyLimiter.Waiter implements TimerTask {
+
+        private final CompletableFuture<Object> result;
+        private final long timeoutMillis;
+        private Runnable send;
+        private Timeout timeout;
+
+        PermitCallback(CompletableFuture<Object> result, long timeoutMillis) {
+            this.result = result;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        void enqueue(Runnable send) {
+            this.send = send;
+            this.timeout = ClientHelper.TIMER.newTimeout(this, timeoutMillis, TimeUnit.MILLISECONDS);
+            limiter.enqueue(this);
+        }
+
+        @Override
+        protected void onAcquired() {
+            timeout.cancel();
+            send.run();
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            if (cancel()) {
+                limiter.discard(this);
+                result.completeExceptionally(limitExceeded(timeoutMillis));
+            }
+        }
+    }
+
     class ReconnectAddress implements Runnable {
 
         private final InetSocketAddress address;
@@ -0,0 +1,208 @@
+package com.lee.rpc.helper.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 每一个ClientProxy一个，限制同时发送出去还没有回复的请求个数，参考RpcClient.maxConcurrency
+ * <p>
+ * limit使用AIMD的方式自适应：
+ * 1. 回复的RTT没有超过最小RTT的RTT_TOLERANCE倍，并且已经用到了limit的一半以上的时候，每一轮(大约limit个回复)加1
+ * 2. 超时、SERVICE_BUSY或者RTT超过了最小RTT的RTT_TOLERANCE倍，说明服务器已经开始排队了，乘以BACKOFF_RATIO，
+ * 一个RTT之内最多只减一次，否则同一批请求的超时会让limit一下子降到最小
+ * <p>
+ * 最小RTT每RTT_WINDOW个样本重新统计一次，这样服务器本身的处理时间变了以后可以跟上
+ * 超过limit的请求在本地排队，有请求回复的时候按照先后顺序交给排队的请求，而不是继续发送给服务器让它的队列越来越长
+ *
+ * @author Administrator
+ */
+public class ConcurrencyLimiter {
+
+    private static final int MIN_LIMIT = 1;
+    private static final int INITIAL_LIMIT = 20;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final int RTT_WINDOW = 1000;
+
+    private final int maxLimit;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private volatile double limit;
+
+    /**
+     * 下面这些只在update里面访问，已经加锁了
+     */
+    private long minRtt = Long.MAX_VALUE;
+    private long windowMinRtt = Long.MAX_VALUE;
+    private long samples;
+    private long lastBackoff;
+
+    public ConcurrencyLimiter(int maxLimit) {
+        this.maxLimit = Math.max(maxLimit, MIN_LIMIT);
+        this.limit = Math.min(this.maxLimit, INITIAL_LIMIT);
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 同步调用使用的，最多等待timeout
+     *
+     * @return 一直到超时都没有拿到的时候返回false
+     */
+    public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        if (tryAcquire()) {
+            return true;
+        }
+
+        LatchWaiter waiter = new LatchWaiter();
+        enqueue(waiter);
+        try {
+            if (waiter.latch.await(timeout, unit)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            if (!waiter.cancel()) {
+                //刚好拿到了，需要还回去
+                release();
+            }
+            throw e;
+        }
+
+        if (waiter.cancel()) {
+            waiters.remove(waiter);
+            return false;
+        }
+        //超时的同时拿到了
+        return true;
+    }
+
+    /**
+     * 异步调用使用的，拿到以后在释放的那个线程(一般是IO线程)里面调用Waiter.onAcquired
+     */
+    public void enqueue(Waiter waiter) {
+        waiters.offer(waiter);
+        //放进队列之前正在执行的请求可能都已经回复了，这里再检查一次，防止没有人来唤醒
+        drain();
+    }
+
+    /**
+     * 异步调用的Waiter超时以后调用，防止一直没有回复的时候队列越积越多
+     */
+    public void discard(Waiter waiter) {
+        waiters.remove(waiter);
+    }
+
+    /**
+     * 请求没有发送出去，不需要统计RTT
+     */
+    public void release() {
+        inflight.decrementAndGet();
+        drain();
+    }
+
+    /**
+     * @param rttNanos 从发送到收到回复的时间
+     * @param overload 超时或者SERVICE_BUSY
+     */
+    public void release(long rttNanos, boolean overload) {
+        update(rttNanos, overload);
+        release();
+    }
+
+    private synchronized void update(long rttNanos, boolean overload) {
+        if (!overload) {
+            minRtt = Math.min(minRtt, rttNanos);
+            windowMinRtt = Math.min(windowMinRtt, rttNanos);
+            if (++samples % RTT_WINDOW == 0) {
+                minRtt = windowMinRtt;
+                windowMinRtt = Long.MAX_VALUE;
+            }
+        }
+
+        double current = limit;
+        if (overload || rttNanos > minRtt * RTT_TOLERANCE) {
+            long now = System.nanoTime();
+            if (now - lastBackoff >= rttNanos) {
+                lastBackoff = now;
+                limit = Math.max(MIN_LIMIT, current * BACKOFF_RATIO);
+            }
+        } else if (inflight.get() * 2 >= current) {
+            limit = Math.min(maxLimit, current + 1 / current);
+        }
+    }
+
+    /**
+     * 把空出来的位置按照先后顺序交给排队的请求，已经超时的Waiter不会接受
+     */
+    private void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            Waiter waiter = waiters.poll();
+            if (waiter == null || !waiter.grant()) {
+                inflight.decrementAndGet();
+                if (waiter == null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 在队列里面等待的请求，拿到和超时只会有一个生效
+     */
+    public abstract static class Waiter {
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        /**
+         * 拿到以后在释放的那个线程里面调用，执行完请求以后需要调用release
+         */
+        protected abstract void onAcquired();
+
+        /**
+         * @return 已经拿到的时候返回false，这个时候需要负责release
+         */
+        public boolean cancel() {
+            return done.compareAndSet(false, true);
+        }
+
+        private boolean grant() {
+            if (done.compareAndSet(false, true)) {
+                onAcquired();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class LatchWaiter extends Waiter {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        protected void onAcquired() {
+            latch.countDown();
+        }
+    }
+}
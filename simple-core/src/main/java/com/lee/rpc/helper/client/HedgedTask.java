@@ -0,0 +1,78 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.RpcException;
+import com.lee.rpc.helper.client.ClientHelper.AsyncTask;
+import com.lee.rpc.helper.client.ClientHelper.Task;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对冲请求使用的，同一个调用先发送一个请求，过了一段时间还没有回复的话，在另外一个Channel上面再发送一个，两个请求注册的都是这个Task
+ * <p>
+ * 1. 先到的正常结果生效，AsyncTask只会完成一次，后到的结果在AsyncTask里面释放掉
+ * 2. 一个请求失败了，另一个还没有回复的时候不处理，只有两个请求都失败的时候才把最后一个错误交给调用者
+ * 3. 调用结束以后(包括超时)通过PendingRequests.cancel通知服务器不用再执行还没有回复的那一个，已经回复的那个cancel什么也不做
+ *
+ * @author Administrator
+ */
+public class HedgedTask implements Task {
+
+    private final AsyncTask target;
+    private final AtomicInteger outstanding = new AtomicInteger(1);
+    private final long requestId;
+    private final PendingRequests pending;
+
+    private volatile long hedgeRequestId;
+    private volatile PendingRequests hedgePending;
+
+    public HedgedTask(AsyncTask target, long requestId, PendingRequests pending) {
+        this.target = target;
+        this.requestId = requestId;
+        this.pending = pending;
+        target.whenComplete((value, cause) -> cancelAll());
+    }
+
+    /**
+     * 在时间轮的线程里面调用，只会调用一次
+     *
+     * @return 调用已经结束的时候返回false，这个时候不需要再发送了
+     */
+    public boolean hedge(long requestId, PendingRequests pending) {
+        if (target.isDone()) {
+            return false;
+        }
+        outstanding.incrementAndGet();
+        this.hedgeRequestId = requestId;
+        this.hedgePending = pending;
+        //检查和设置之间调用结束了，cancelAll可能没有看到hedgePending
+        if (target.isDone()) {
+            pending.cancel(requestId);
+        }
+        return true;
+    }
+
+    @Override
+    public void setValue(long requestId, Object value) {
+        if (value instanceof RpcException && outstanding.decrementAndGet() > 0) {
+            //另外一个请求还没有回复，等它的结果
+            return;
+        }
+        target.setValue(requestId, value);
+    }
+
+    /**
+     * 调用结束以后两个请求都不需要再发送了，最常见的是刚写出去的对冲请求还在Batcher的队列里面的时候第一个请求的回复就到了
+     */
+    @Override
+    public boolean isAbandoned(long requestId) {
+        return target.isDone();
+    }
+
+    private void cancelAll() {
+        pending.cancel(requestId);
+        PendingRequests hedge = hedgePending;
+        if (hedge != null) {
+            hedge.cancel(hedgeRequestId);
+        }
+    }
+}
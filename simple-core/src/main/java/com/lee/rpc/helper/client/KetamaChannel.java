@@ -1,16 +1,24 @@
 package com.lee.rpc.helper.client;
 
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.util.CityHash;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelId;
 import lombok.extern.slf4j.Slf4j;
 
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import static com.lee.rpc.helper.RpcHelper.ADDRESS;
 import static com.lee.rpc.helper.RpcHelper.KEY;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -25,7 +33,10 @@ public class KetamaChannel {
     private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8));
     private static final int VIRTUAL_NODE_COUNT = 10;
 
-    private SortedMap<Long, Channel> channels = new TreeMap<>();
+    /**
+     * 修改的时候都是复制一份新的再替换掉，所以读取的时候不需要加锁
+     */
+    private volatile SortedMap<Long, Channel> channels = new TreeMap<>();
 
     public synchronized void fillChannelWithWeight(Channel channel) {
         SortedMap<Long, Channel> newChannels = new TreeMap<>(channels);
@@ -58,25 +69,84 @@ public class KetamaChannel {
         channels = newChannels;
     }
 
+    /**
+     * @return 返回hash环上面所有的物理Channel，一个Channel在环上面有多个虚拟节点，这里只返回一次
+     */
+    public Set<Channel> getChannels() {
+        return new HashSet<>(channels.values());
+    }
+
+    /**
+     * 广播的时候使用，每一个地址只返回一个Channel，同一个地址有多个Channel的时候优先返回可用的那一个，顺序不固定
+     */
+    public Collection<Channel> getChannelPerAddress() {
+        Map<InetSocketAddress, Channel> result = new LinkedHashMap<>();
+        for (Channel channel : channels.values()) {
+            InetSocketAddress address = channel.attr(ADDRESS).get();
+            Channel chosen = result.get(address);
+            if (chosen == null || !isAvailable(chosen) && isAvailable(channel)) {
+                result.put(address, channel);
+            }
+        }
+        return result.values();
+    }
+
+    /**
+     * 从requestId对应的位置开始顺时针查找，跳过不可写或者还没有协商完成的Channel，直接返回第一个可用的，
+     * 而不是返回一个不可用的Channel让调用者等待以后再重新选择
+     *
+     * @return 所有的Channel都不可用的时候，返回requestId原本对应的那个Channel
+     */
     public Channel getChannel(long requestId) {
-        requestId = mapping(requestId);
-        final Channel rv;
-
-        //key的hash值没有和hash环上面的salt对应，这个时候就顺时针获取离该hash最近的salt
-        if (!channels.containsKey(requestId)) {
-            SortedMap<Long, Channel> tailMap = channels.tailMap(requestId);
-            //如果计算出来的当前hash值在这个环里面是最大的，也就是没有大于该hash值的salt存在，那么这个时候就获取
-            //hash环里面的最小的的那个salt
-            if (tailMap.isEmpty()) {
-                requestId = channels.firstKey();
-            } else {
-                requestId = tailMap.firstKey();
+        return getChannel(requestId, null);
+    }
+
+    /**
+     * 和getChannel一样，只是跳过exclude这个地址上面的所有Channel。按照权重同一个地址会有多个Channel，对冲请求需要发送到
+     * 和第一个请求不一样的RpcServer上面去，而不只是同一个RpcServer的另外一个连接
+     *
+     * @return 除了exclude以外没有别的地址的时候返回null
+     */
+    public Channel getChannel(long requestId, InetSocketAddress exclude) {
+        SortedMap<Long, Channel> ring = channels;
+        long hash = mapping(requestId);
+        Channel first = null;
+
+        //先找大于等于该hash的部分，如果都不可用，再从hash环最小的位置开始找，相当于绕了一圈
+        for (Channel channel : ring.tailMap(hash).values()) {
+            if (isExcluded(channel, exclude)) {
+                continue;
+            }
+            if (isAvailable(channel)) {
+                return channel;
+            }
+            if (first == null) {
+                first = channel;
             }
         }
+        for (Channel channel : ring.headMap(hash).values()) {
+            if (isExcluded(channel, exclude)) {
+                continue;
+            }
+            if (isAvailable(channel)) {
+                return channel;
+            }
+            if (first == null) {
+                first = channel;
+            }
+        }
+        return first;
+    }
+
+    private static boolean isExcluded(Channel channel, InetSocketAddress exclude) {
+        return exclude != null && exclude.equals(channel.attr(ADDRESS).get());
+    }
 
-        //如果计算出来的hash刚好就是这个salt对应的Channel，那么直接返回
-        rv = channels.get(requestId);
-        return rv;
+    /**
+     * 协议版本还没有协商完成的Channel和不可写的Channel一样，都不能够用来发送请求
+     */
+    public static boolean isAvailable(Channel channel) {
+        return channel != null && channel.isWritable() && ProtocolHelper.isNegotiated(channel);
     }
 
     private long mapping(long key) {
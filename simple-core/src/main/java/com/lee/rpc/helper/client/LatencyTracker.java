@@ -0,0 +1,82 @@
+package com.lee.rpc.helper.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 客户端每一个需要对冲的方法一个，记录最近的调用耗时，用来估算p95，参考RpcMethod.hedge
+ * <p>
+ * 使用对数分桶的直方图，每一个2的幂次再分成4个桶，误差在25%以内，记录一次只是两次原子的加法，不需要保存每一次的耗时。
+ * 每记录WINDOW次重新计算一次p95，同时把所有的桶减半，这样老的数据会慢慢衰减掉，p95可以跟上服务器最近的状态
+ *
+ * @author Administrator
+ */
+public class LatencyTracker {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final int WINDOW = 1024;
+
+    /**
+     * 样本太少的时候计算出来的p95没有意义，这个时候不对冲
+     */
+    private static final long MIN_SAMPLES = 100;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong recorded = new AtomicLong();
+    private volatile long p95Micros = -1;
+
+    /**
+     * @param nanos 从发送请求到收到结果的时间
+     */
+    public void record(long nanos) {
+        buckets.incrementAndGet(index(Math.max(nanos / 1000, SUB_BUCKETS)));
+        long count = recorded.incrementAndGet();
+        if (count >= MIN_SAMPLES && (count == MIN_SAMPLES || count % WINDOW == 0)) {
+            //只有一个线程会计算，其他线程继续使用上一次的结果
+            p95Micros = percentile(0.95, count % WINDOW == 0);
+        }
+    }
+
+    /**
+     * @return 返回p95，单位是微秒，样本还不够的时候返回-1
+     */
+    public long p95Micros() {
+        return p95Micros;
+    }
+
+    private long percentile(double percentile, boolean decay) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = decay ? buckets.getAndAdd(i, -(buckets.get(i) >>> 1)) : buckets.get(i);
+            total += counts[i];
+        }
+
+        long threshold = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= threshold && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * value至少是SUB_BUCKETS，保证最高位后面至少还有SUB_BUCKET_BITS位
+     */
+    private static int index(long value) {
+        int highest = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (highest - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return highest * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        int highest = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (highest - SUB_BUCKET_BITS);
+    }
+}
@@ -27,6 +27,7 @@ import static com.lee.rpc.helper.RpcHelper.ADDRESS;
 import static com.lee.rpc.helper.RpcHelper.KEY;
 import static com.lee.rpc.helper.RpcHelper.ZOOKEEPER;
 import static com.lee.rpc.helper.client.ClientHelper.CLIENT_GENERATOR;
+import static com.lee.rpc.util.exception.ErrorType.CHANNEL_INACTIVE;
 import static java.lang.Thread.NORM_PRIORITY;
 
 /**
@@ -81,6 +82,7 @@ class NettyClient {
             bootstrap.handler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 public void initChannel(SocketChannel ch) {
+                    PendingRequests.install(ch, serviceId);
                     ch.pipeline().addLast(
                             new FlushConsolidationHandler(
                                     20, true
@@ -193,6 +195,13 @@ class NettyClient {
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             final Channel channel = ctx.channel();
+            //还没有收到回复的请求马上交给ClientProxy处理，幂等的方法换一个RpcServer重新发送，而不是等到超时
+            PendingRequests pending = PendingRequests.of(channel);
+            if (pending != null) {
+                pending.close(new RpcException().withStatus(CHANNEL_INACTIVE)
+                        .withError("Channel to " + address + " became inactive before response"));
+            }
+
             if (!isShutdown) {
                 //这个地方需要判断一下是否是zookeeper上面的，如果是zookeeper上面的话，那么可以不用一直去建立连接
                 //因为zookeeper可能就是由于动态的在扩展，因为本身就是动态在扩展，所以没有必须再去建立连接，不过
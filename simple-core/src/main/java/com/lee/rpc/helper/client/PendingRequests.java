@@ -0,0 +1,178 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.RpcException;
+import com.lee.rpc.helper.ProtocolHelper;
+import com.lee.rpc.helper.client.ClientHelper.Task;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import lombok.extern.slf4j.Slf4j;
+
+import static com.lee.rpc.helper.RpcHelper.PENDING;
+import static com.lee.rpc.util.Constant.CANCEL;
+import static com.lee.rpc.util.Constant.EMPTY_VALUE;
+
+/**
+ * 每一个Channel一个，记录已经发送出去但是还没有收到回复的请求，只能够在Channel的EventLoop里面访问，所以不需要任何的锁
+ * <p>
+ * 1. 请求在encoder里面编码的时候注册，这个时候一定是在IO线程里面，并且一定在回复到达之前
+ * 2. 回复在decoder里面完成，同样是在IO线程里面
+ * 3. 调用者超时或者不再需要结果的时候，通过cancel把删除操作交给EventLoop去执行，协议版本支持的时候同时发送CANCEL帧给服务器
+ * 4. Channel断开的时候通过close让所有还在等待的请求马上失败，不需要等到超时
+ * <p>
+ * requestId直接作为long使用，不需要装箱，不同的Channel之间也不存在竞争
+ *
+ * @author Administrator
+ */
+@Slf4j
+public class PendingRequests {
+
+    private final LongObjectMap<Task> tasks = new LongObjectHashMap<>();
+    private final Channel channel;
+    private final EventLoop eventLoop;
+    private final int serviceId;
+
+    /**
+     * Channel断开以后不为null，之后才注册的请求(还在Batcher队列里面或者正在编码的)同样马上失败
+     */
+    private RpcException closed;
+
+    /**
+     * 消费者跟不上的RpcStream的个数，大于0的时候不读取Socket，参考RpcStream
+     */
+    private int pausedStreams;
+
+    public PendingRequests(Channel channel, int serviceId) {
+        this.channel = channel;
+        this.eventLoop = channel.eventLoop();
+        this.serviceId = serviceId;
+    }
+
+    public static void install(Channel channel, int serviceId) {
+        channel.attr(PENDING).set(new PendingRequests(channel, serviceId));
+    }
+
+    /**
+     * @return 还没有初始化完成的Channel返回null
+     */
+    public static PendingRequests of(Channel channel) {
+        return channel.attr(PENDING).get();
+    }
+
+    /**
+     * 只能够在IO线程里面调用，参考RpcClientEncoder
+     */
+    public void register(long requestId, Task task) {
+        if (closed != null) {
+            task.setValue(requestId, closed);
+            return;
+        }
+        tasks.put(requestId, task);
+    }
+
+    /**
+     * 只能够在IO线程里面调用，收到回复以后删除对应的Task，并且设置结果
+     */
+    public void complete(long requestId, Object value) {
+        Task task = tasks.remove(requestId);
+        if (task != null) {
+            task.setValue(requestId, value);
+        } else {
+            log.warn(
+                    "RequestId {} does not exist, but service has processed, maybe current operation executing timeout, " +
+                            "retry another request send to service",
+                    requestId
+            );
+            ReferenceCountUtil.release(value);
+        }
+    }
+
+    /**
+     * 只能够在IO线程里面调用，STREAM帧只是把元素交给对应的RpcStream，不会删除掉，结束帧和普通的回复一样通过complete来处理
+     */
+    public void offer(long requestId, Object value) {
+        Task task = tasks.get(requestId);
+        if (task instanceof RpcStream) {
+            ((RpcStream) task).offer(value);
+        } else {
+            log.debug("Stream {} does not exist, maybe caller has closed it", requestId);
+            ReferenceCountUtil.release(value);
+        }
+    }
+
+    /**
+     * 可以在任何线程里面调用，不在IO线程里面的时候交给EventLoop去删除
+     * 还没有收到回复的请求，在协议版本支持的时候发送一个CANCEL帧，服务器还没有开始执行的话就不会再执行了
+     * 请求本身还在Batcher的队列里面的时候这里找不到它，encoder注册之前会通过Task.isAbandoned检查，直接丢掉而不会发送出去
+     */
+    public void cancel(long requestId) {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(() -> cancel(requestId));
+            return;
+        }
+
+        if (tasks.remove(requestId) == null || !channel.isActive()) {
+            return;
+        }
+
+        int version = ProtocolHelper.getProtocolVersion(channel);
+        if (ProtocolHelper.isCancelSupported(version)) {
+            ByteBuf frame = channel.alloc().ioBuffer(ProtocolHelper.headerLength(version));
+            ProtocolHelper.writeHeader(frame, version, serviceId, requestId, EMPTY_VALUE, CANCEL);
+            channel.writeAndFlush(frame);
+        }
+    }
+
+    /**
+     * 只能够在IO线程里面调用，RpcStream的队列超过高水位的时候调用，和resumeRead成对出现
+     */
+    public void pauseRead() {
+        ChannelConfig config = channel.config();
+        if (pausedStreams++ == 0 && config.isAutoRead()) {
+            config.setAutoRead(false);
+        }
+    }
+
+    /**
+     * 可以在任何线程里面调用，所有暂停的RpcStream都恢复以后才重新开始读取
+     */
+    public void resumeRead() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(this::resumeRead);
+            return;
+        }
+
+        ChannelConfig config = channel.config();
+        if (--pausedStreams == 0 && !config.isAutoRead()) {
+            config.setAutoRead(true);
+            channel.read();
+        }
+    }
+
+    /**
+     * 可以在任何线程里面调用，把当前Channel上面所有还在等待的请求设置成失败
+     */
+    public void failAll(RpcException exception) {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(() -> failAll(exception));
+            return;
+        }
+
+        for (LongObjectMap.PrimitiveEntry<Task> entry : tasks.entries()) {
+            entry.value().setValue(entry.key(), exception);
+        }
+        tasks.clear();
+    }
+
+    /**
+     * 只能够在IO线程里面调用，参考NettyClient.ReconnectHandler，重连以后是一个新的Channel，会有新的PendingRequests
+     */
+    public void close(RpcException exception) {
+        closed = exception;
+        failAll(exception);
+    }
+}
@@ -0,0 +1,34 @@
+package com.lee.rpc.helper.client;
+
+import java.util.List;
+
+/**
+ * 广播调用合并结果使用的，参考RpcMethod.broadcast，实现类需要有无参的构造函数，同一个方法的所有调用共用一个实例，所以需要是线程安全的
+ * 结果的类型不能是集合，和普通的方法一样需要是一个对象，分片查询的时候可以把每一个对象里面的集合合并到一个新的对象里面
+ *
+ * @author Administrator
+ */
+public interface Reducer<T> {
+
+    /**
+     * @param results 每一个RpcServer返回的结果，顺序不固定，partialResult的时候只包含成功的部分，至少有一个
+     * @return 返回合并以后的结果，类型需要和方法声明的返回值一致
+     */
+    T reduce(List<T> results);
+
+    /**
+     * 默认的实现，返回第一个不为null的结果，适合没有返回值或者每一个RpcServer返回的都一样的方法
+     */
+    class First implements Reducer<Object> {
+
+        @Override
+        public Object reduce(List<Object> results) {
+            for (Object result : results) {
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        }
+    }
+}
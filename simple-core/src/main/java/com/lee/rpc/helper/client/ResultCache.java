@@ -0,0 +1,434 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.RpcException;
+import com.lee.rpc.RpcMethodUnit;
+import com.lee.rpc.helper.recycler.ByteBufOutputStreamRecycler;
+import com.lee.rpc.util.stream.ByteBufOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.lee.rpc.util.exception.ErrorType.CLIENT_SERIALIZER_ERROR;
+
+/**
+ * 每一个开启了缓存的RpcMethodUnit一个，参考RpcMethod.cacheTtlMillis，同步和异步两个版本共用，key是序列化以后的参数
+ * <p>
+ * 淘汰使用W-TinyLFU：
+ * 1. 新的结果先放到window(maxSize的1%)里面，按照LRU淘汰，这样突发的新数据有机会积累访问次数
+ * 2. 从window里面出来的候选者和main的probation里面最久没有访问的那一个比较FrequencySketch里面的访问次数，次数少的被淘汰，
+ * 这样只访问一次的数据不会把热点数据挤出去
+ * 3. probation里面再次被访问的移动到protected(main的80%)，protected满了以后最久没有访问的降级回probation
+ * <p>
+ * 读的时候不加锁，访问顺序和访问次数的更新只是tryLock，拿不到锁的时候直接跳过，淘汰的精度差一点，但是命中的路径不会阻塞
+ * 过期的数据只在读到的时候删除，没有读到的会随着淘汰慢慢被挤出去
+ *
+ * @author Administrator
+ */
+public class ResultCache {
+
+    /**
+     * get没有命中的时候返回这个，结果本身可以是null
+     */
+    public static final Object MISS = new Object();
+
+    private static final Object NULL = new Object();
+    private static final byte[] EMPTY_KEY = new byte[0];
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final RpcMethodUnit unit;
+    private final long ttlNanos;
+    private final int maxSize;
+    private final int windowMax;
+    private final int protectedMax;
+
+    private final Map<Key, Node> data = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final Node window = new Node(null, null, 0);
+    private final Node probation = new Node(null, null, 0);
+    private final Node protect = new Node(null, null, 0);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * 每一次invalidate都会加1，请求发送之前创建的Key在回复到达的时候发现变了，说明期间有过invalidate，这个结果可能是旧的，不放进去
+     */
+    private volatile long epoch;
+
+    /**
+     * 下面这些只在加锁的时候访问
+     */
+    private int windowSize;
+    private int protectedSize;
+
+    public ResultCache(RpcMethodUnit unit, int maxSize, long ttlMillis) {
+        this.unit = unit;
+        this.maxSize = Math.max(maxSize, 2);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.windowMax = Math.max(1, this.maxSize / 100);
+        this.protectedMax = (this.maxSize - windowMax) * 8 / 10;
+        this.sketch = new FrequencySketch(this.maxSize);
+        for (Node head : new Node[]{window, probation, protect}) {
+            head.prev = head;
+            head.next = head;
+        }
+    }
+
+    /**
+     * @param encoded ClientProxy序列化好的参数，只是拷贝一份，不会释放，null表示没有参数
+     */
+    public Key key(ByteBuf encoded) {
+        return new Key(encoded == null ? EMPTY_KEY : ByteBufUtil.getBytes(encoded), epoch);
+    }
+
+    /**
+     * @return 没有命中或者已经过期的时候返回MISS
+     */
+    public Object get(Key key) {
+        Node node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            if (lock.tryLock()) {
+                try {
+                    //没有命中的也需要记录，下一次放进来的时候才知道它是不是经常被访问
+                    sketch.increment(key.hash);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return MISS;
+        }
+
+        if (System.nanoTime() - node.expireAt >= 0) {
+            misses.increment();
+            lock.lock();
+            try {
+                remove(node);
+            } finally {
+                lock.unlock();
+            }
+            return MISS;
+        }
+
+        hits.increment();
+        if (lock.tryLock()) {
+            try {
+                onAccess(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        Object value = node.value;
+        return value == NULL ? null : value;
+    }
+
+    public void put(Key key, Object value) {
+        lock.lock();
+        try {
+            if (key.epoch != epoch) {
+                return;
+            }
+
+            Object stored = value == null ? NULL : value;
+            long expireAt = System.nanoTime() + ttlNanos;
+            Node node = data.get(key);
+            if (node != null) {
+                node.value = stored;
+                node.expireAt = expireAt;
+                onAccess(node);
+                return;
+            }
+
+            node = new Node(key, stored, expireAt);
+            data.put(key, node);
+            sketch.increment(key.hash);
+            link(window, node, WINDOW);
+            windowSize++;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 参数在当前线程里面序列化，序列化的方式和ClientProxy发送请求的时候一样，所以可以找到对应的结果
+     */
+    public void invalidate(Object parameter) {
+        byte[] bytes = EMPTY_KEY;
+        if (parameter != null) {
+            ByteBuf buffer = Unpooled.buffer();
+            try (ByteBufOutputStream out = ByteBufOutputStreamRecycler.newInstance(buffer)) {
+                unit.serializeParameter(parameter, out);
+                bytes = ByteBufUtil.getBytes(buffer);
+            } catch (Exception e) {
+                throw new RpcException(e).withStatus(CLIENT_SERIALIZER_ERROR).withError(e.getMessage());
+            } finally {
+                ReferenceCountUtil.release(buffer);
+            }
+        }
+
+        lock.lock();
+        try {
+            epoch++;
+            Node node = data.get(new Key(bytes, 0));
+            if (node != null) {
+                remove(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            epoch++;
+            for (Node node : data.values()) {
+                remove(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    private void onAccess(Node node) {
+        if (node.queue == -1) {
+            //已经被别的线程删除了
+            return;
+        }
+        sketch.increment(node.key.hash);
+        switch (node.queue) {
+            case WINDOW:
+                moveToTail(window, node);
+                break;
+            case PROBATION:
+                unlink(node);
+                link(protect, node, PROTECTED);
+                protectedSize++;
+                if (protectedSize > protectedMax) {
+                    //protected满了，最久没有访问的那个降级回probation，还有一次被访问的机会
+                    Node demoted = protect.next;
+                    unlink(demoted);
+                    protectedSize--;
+                    link(probation, demoted, PROBATION);
+                }
+                break;
+            default:
+                moveToTail(protect, node);
+        }
+    }
+
+    /**
+     * window超出的部分移动到probation，总数超出以后，刚从window出来的候选者和probation里面最久没有访问的比较访问次数
+     */
+    private void evict() {
+        while (windowSize > windowMax) {
+            Node candidate = window.next;
+            unlink(candidate);
+            windowSize--;
+            link(probation, candidate, PROBATION);
+        }
+
+        while (data.size() > maxSize) {
+            Node victim = probation.next;
+            Node candidate = probation.prev;
+            if (victim == probation) {
+                //probation是空的，只能够从protected里面淘汰
+                victim = protect.next;
+                candidate = victim;
+            }
+            if (victim != candidate && sketch.frequency(candidate.key.hash) > sketch.frequency(victim.key.hash)) {
+                remove(victim);
+            } else {
+                remove(candidate);
+            }
+            evictions.increment();
+        }
+    }
+
+    private void remove(Node node) {
+        if (node.queue == -1) {
+            return;
+        }
+        data.remove(node.key, node);
+        if (node.queue == WINDOW) {
+            windowSize--;
+        } else if (node.queue == PROTECTED) {
+            protectedSize--;
+        }
+        unlink(node);
+        node.queue = -1;
+    }
+
+    private static void link(Node head, Node node, int queue) {
+        node.queue = queue;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static void moveToTail(Node head, Node node) {
+        int queue = node.queue;
+        unlink(node);
+        link(head, node, queue);
+    }
+
+    public static final class Key {
+
+        private final byte[] bytes;
+        private final int hash;
+        private final long epoch;
+
+        Key(byte[] bytes, long epoch) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+            this.epoch = epoch;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(bytes, other.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * 双向链表的节点，三个队列的头节点本身不存放数据，value和expireAt会被put更新，读的时候不加锁，所以是volatile
+     */
+    private static final class Node {
+
+        private final Key key;
+        private volatile Object value;
+        private volatile long expireAt;
+        private int queue;
+        private Node prev;
+        private Node next;
+
+        Node(Key key, Object value, long expireAt) {
+            this.key = key;
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 4位的Count-Min Sketch，每一个long存放16个计数器，每一个key对应4个计数器，取最小值作为访问次数，最大只记到15
+     * 记录的次数达到maxSize的10倍以后所有的计数器减半，这样很久以前的热点数据不会一直占着位置
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int size;
+
+        FrequencySketch(int maxSize) {
+            int length = Integer.highestOneBit(Math.max(maxSize, 16) - 1) << 1;
+            this.table = new long[length];
+            this.sampleSize = 10 * Math.max(maxSize, 16);
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = spread(hash, i);
+                frequency = Math.min(frequency, (int) ((table[index(h)] >>> offset(h)) & 0xF));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = spread(hash, i);
+                int index = index(h);
+                int offset = offset(h);
+                long mask = 0xFL << offset;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++size >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size /= 2;
+        }
+
+        private static long spread(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return h + (h >>> 32);
+        }
+
+        private int index(long h) {
+            return (int) h & (table.length - 1);
+        }
+
+        private static int offset(long h) {
+            return ((int) (h >>> 40) & 0xF) << 2;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.lee.rpc.helper.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每一个ClientProxy一个，限制重试的总量，参考RpcClient.retryBudgetPercent
+ * <p>
+ * 使用令牌桶，percent小于等于0的时候不限制，只是退避：
+ * 1. 每一个成功的回复存入percent个令牌，每一次重试(包括对冲)取出100个，所以重试最多只能是成功请求的percent%
+ * 2. 另外每秒补充minRetriesPerSecond次重试的令牌，请求很少的时候偶尔的超时也可以重试
+ * 3. 令牌最多只能存放MAX_RETRIES次重试，长时间正常运行以后服务器突然出问题，也不会有大量的重试一起发出去
+ * <p>
+ * 服务器过载的时候成功的回复变少，令牌很快就用完了，这个时候重试直接失败，而不是让服务器收到更多的请求，
+ * 这样部分的不可用不会被放大成整个服务的不可用
+ *
+ * @author Administrator
+ */
+public class RetryBudget {
+
+    private static final long COST = 100;
+    private static final long MAX_RETRIES = 100;
+
+    private final long percent;
+    private final long refillNanos;
+    private final long maxBalance;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final AtomicLong balance;
+    private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+
+    public RetryBudget(int percent, int minRetriesPerSecond, long backoffMillis, long maxBackoffMillis) {
+        this.percent = Math.max(percent, 0);
+        this.refillNanos = minRetriesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / minRetriesPerSecond : 0;
+        this.maxBalance = Math.max(MAX_RETRIES, minRetriesPerSecond) * COST;
+        this.backoffMillis = Math.max(backoffMillis, 0);
+        this.maxBackoffMillis = Math.max(maxBackoffMillis, this.backoffMillis);
+        this.balance = new AtomicLong(Math.max(minRetriesPerSecond, 1) * COST);
+    }
+
+    /**
+     * 收到成功的回复的时候调用
+     */
+    public void deposit() {
+        if (percent > 0 && balance.get() < maxBalance) {
+            balance.accumulateAndGet(percent, (current, x) -> Math.min(current + x, maxBalance));
+        }
+    }
+
+    /**
+     * @return 还有令牌的时候取出一次重试需要的令牌，返回true，否则返回false，调用者需要直接失败
+     */
+    public boolean tryWithdraw() {
+        if (percent == 0) {
+            return true;
+        }
+        refill();
+        while (true) {
+            long current = balance.get();
+            if (current < COST) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - COST)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * tryWithdraw成功以后请求最终没有发送出去的时候调用，把取出的令牌还回去
+     */
+    public void refund() {
+        if (percent > 0) {
+            balance.accumulateAndGet(COST, (current, x) -> Math.min(current + x, maxBalance));
+        }
+    }
+
+    /**
+     * 指数退避，并且在0到退避时间之间随机取一个值(full jitter)，同一时间超时的请求不会在同一时间一起重试
+     *
+     * @param retryCount 第几次重试，从1开始
+     * @return 重试之前需要等待的时间，单位是毫秒
+     */
+    public long backoffMillis(int retryCount) {
+        if (backoffMillis == 0) {
+            return 0;
+        }
+        long ceiling = backoffMillis << Math.min(Math.max(retryCount - 1, 0), 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(ceiling, maxBackoffMillis) + 1);
+    }
+
+    public long getBalance() {
+        return balance.get() / COST;
+    }
+
+    private void refill() {
+        if (refillNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastRefill.get();
+        long count = (now - last) / refillNanos;
+        //同一时间只有一个线程可以补充，lastRefill只前进整数个refillNanos，剩下的留到下一次
+        if (count > 0 && lastRefill.compareAndSet(last, last + count * refillNanos)) {
+            long amount = Math.min(count, MAX_RETRIES) * COST;
+            balance.accumulateAndGet(amount, (current, x) -> Math.min(current + x, maxBalance));
+        }
+    }
+}
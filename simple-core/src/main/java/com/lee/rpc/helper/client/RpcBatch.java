@@ -0,0 +1,216 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.RpcMethodUnit;
+import com.lee.rpc.RpcRequest;
+import com.lee.rpc.RpcRequestBatch;
+import com.lee.rpc.helper.ProtocolHelper;
+import com.lee.rpc.helper.recycler.RpcRequestBatchRecycler;
+import com.lee.rpc.util.exception.ApplicationException;
+import io.netty.channel.Channel;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * 一次性发送多个互相独立的调用，同一个Channel上面的请求合并成一个BATCH帧，只flush一次，最后只等待一次
+ * <pre>
+ * List&lt;Object&gt; results = RpcBatch.of(client)
+ *         .call(c -&gt; c.getUser(1))
+ *         .call(c -&gt; c.getOrder(2))
+ *         .execute();
+ * </pre>
+ * 1. call只是在当前线程里面记录调用的方法和参数，同步方法在记录的时候返回null(返回值是基本类型的时候返回默认值)，不会发送请求
+ * 2. execute的时候按照记录的顺序走ClientProxy.invokeAsync，ConcurrencyLimiter、缓存、合并、重试都和单独调用一样，
+ * 只是第一次写请求的时候不直接写到Channel里面，而是按照Channel收集起来，最后每一个Channel只写一次
+ * 3. 没有拿到许可或者没有可用的Channel的调用，和重试一样在后面单独发送
+ * <p>
+ * 流式方法不支持，不是线程安全的，一个RpcBatch只能够在一个线程里面使用
+ *
+ * @author Administrator
+ */
+public class RpcBatch<T> {
+
+    private static final ThreadLocal<RpcBatch<?>> CURRENT = new ThreadLocal<>();
+
+    private final T client;
+    private final List<Call> calls = new ArrayList<>();
+    private final Map<Channel, List<RpcRequest>> requests = new IdentityHashMap<>();
+    private boolean collecting;
+
+    private RpcBatch(T client) {
+        this.client = client;
+    }
+
+    /**
+     * @param client ClientHelper.getClient返回的客户端
+     */
+    public static <T> RpcBatch<T> of(T client) {
+        return new RpcBatch<>(client);
+    }
+
+    /**
+     * @param invocation 在里面调用客户端的方法，同步和异步的方法都可以，可以调用多次
+     */
+    public RpcBatch<T> call(Consumer<T> invocation) {
+        CURRENT.set(this);
+        try {
+            invocation.accept(client);
+        } finally {
+            CURRENT.remove();
+        }
+        return this;
+    }
+
+    /**
+     * 发送所有记录下来的调用，等待所有的结果，某一个调用失败的时候抛出按照记录顺序的第一个错误，需要单独处理每一个调用的结果的时候
+     * 使用executeAsync
+     *
+     * @return 按照记录的顺序返回每一个调用的结果
+     */
+    public List<Object> execute() {
+        List<CompletableFuture<Object>> futures = executeAsync();
+        List<Object> results = new ArrayList<>(futures.size());
+        try {
+            //每一个调用都有自己的超时，所以这里不需要再指定超时时间
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationException("Interrupted by any other thread, may be client is stopping", e);
+        } catch (ExecutionException e) {
+            //下面按照顺序找到第一个失败的调用
+        }
+
+        for (CompletableFuture<Object> future : futures) {
+            try {
+                results.add(future.getNow(null));
+            } catch (RuntimeException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new ApplicationException(cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return 按照记录的顺序返回每一个调用的future，和单独调用invokeAsync返回的一样，在IO线程里面完成
+     */
+    public List<CompletableFuture<Object>> executeAsync() {
+        List<CompletableFuture<Object>> futures = new ArrayList<>(calls.size());
+        collecting = true;
+        CURRENT.set(this);
+        try {
+            for (Call call : calls) {
+                futures.add(call.result);
+                try {
+                    CompletableFuture<Object> future =
+                            call.proxy.invokeAsync(call.unit, call.parameter, call.timeoutMillis);
+                    future.whenComplete((value, cause) -> {
+                        if (cause == null) {
+                            call.result.complete(value);
+                        } else {
+                            call.result.completeExceptionally(cause);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    //参数序列化失败之类的错误只影响当前这一个调用
+                    call.result.completeExceptionally(e);
+                }
+            }
+        } finally {
+            CURRENT.remove();
+            collecting = false;
+            flush();
+        }
+        calls.clear();
+        return futures;
+    }
+
+    /**
+     * ClientProxy在调用之前检查，返回不为null的时候只需要记录下来
+     */
+    static RpcBatch<?> recording() {
+        RpcBatch<?> batch = CURRENT.get();
+        return batch == null || batch.collecting ? null : batch;
+    }
+
+    /**
+     * 生成的客户端在返回值为基本类型的同步方法里面调用，记录的时候ClientProxy.invoke返回的是null，直接拆箱会抛出
+     * NullPointerException，所以这个时候换成基本类型的默认值，不在记录的时候原样返回
+     *
+     * @param value      ClientProxy.invoke返回的值
+     * @param returnType 方法声明的返回值类型
+     */
+    public static Object placeholder(Object value, Class<?> returnType) {
+        if (value != null || !returnType.isPrimitive() || recording() == null) {
+            return value;
+        }
+        return Array.get(Array.newInstance(returnType, 1), 0);
+    }
+
+    /**
+     * ClientProxy在写请求之前检查，返回不为null的时候交给collect，而不是直接写到Channel里面
+     */
+    static RpcBatch<?> collecting() {
+        RpcBatch<?> batch = CURRENT.get();
+        return batch != null && batch.collecting ? batch : null;
+    }
+
+    /**
+     * @return 返回execute以后会完成的future，异步方法直接把它返回给调用者
+     */
+    CompletableFuture<Object> record(ClientProxy proxy, RpcMethodUnit unit, Object parameter, long timeoutMillis) {
+        Call call = new Call(proxy, unit, parameter, timeoutMillis);
+        calls.add(call);
+        return call.result;
+    }
+
+    void collect(Channel channel, RpcRequest request) {
+        requests.computeIfAbsent(channel, c -> new ArrayList<>()).add(request);
+    }
+
+    /**
+     * 支持BATCH的Channel把所有的请求放到一个RpcRequestBatch里面，encoder会按照BATCH_BODY_LIMIT拆成多个帧，老版本的Channel
+     * 一个请求一个帧，但是也只flush一次
+     */
+    private void flush() {
+        for (Map.Entry<Channel, List<RpcRequest>> entry : requests.entrySet()) {
+            Channel channel = entry.getKey();
+            List<RpcRequest> list = entry.getValue();
+            if (list.size() > 1 && ProtocolHelper.isBatchSupported(channel)) {
+                RpcRequestBatch batch = RpcRequestBatchRecycler.newInstance(list.get(0).getServiceId());
+                for (RpcRequest request : list) {
+                    batch.add(request);
+                }
+                channel.writeAndFlush(batch);
+            } else {
+                for (RpcRequest request : list) {
+                    channel.write(request);
+                }
+                channel.flush();
+            }
+        }
+        requests.clear();
+    }
+
+    private static final class Call {
+
+        private final ClientProxy proxy;
+        private final RpcMethodUnit unit;
+        private final Object parameter;
+        private final long timeoutMillis;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Call(ClientProxy proxy, RpcMethodUnit unit, Object parameter, long timeoutMillis) {
+            this.proxy = proxy;
+            this.unit = unit;
+            this.parameter = parameter;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+}
@@ -7,26 +7,35 @@ import com.lee.rpc.annotation.RpcMethod;
 import com.lee.rpc.annotation.Serialization;
 import com.lee.rpc.decoder.RpcClientDecoder;
 import com.lee.rpc.helper.RpcHelper;
+import com.lee.rpc.helper.StreamHelper;
 import io.netty.channel.ChannelHandler;
 import io.netty.util.collection.ByteObjectMap;
 import javassist.*;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ClassUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static com.lee.rpc.util.Constant.EMPTY;
+import static com.lee.rpc.util.Constant.PROTOCOL_V1;
 
 
 @Slf4j
 public class RpcClientGenerator {
 
+    private static final String ASYNC_SUFFIX = "Async";
+
     private final AtomicInteger rpcServiceCounter = new AtomicInteger(1);
     private final Map<String, RpcMethodUnit> setterMethodMapping = new HashMap<>();
     private final Map<Integer, Class<ChannelHandler>> registeredChannels = new HashMap<>();
@@ -34,13 +43,20 @@ public class RpcClientGenerator {
     public synchronized ChannelHandler createDecoder(InetSocketAddress address,
                                                      int serviceId,
                                                      ClientProxy clientProxy) {
+        return createDecoder(address, serviceId, clientProxy, PROTOCOL_V1);
+    }
+
+    /**
+     * @param protocolVersion 当前Channel协商出来的协议版本，还没有协商的Channel使用V1
+     */
+    public synchronized ChannelHandler createDecoder(InetSocketAddress address,
+                                                     int serviceId,
+                                                     ClientProxy clientProxy, int protocolVersion) {
         try {
             RpcServiceClientUnit unit = RpcHelper.getRpcClientUnit(serviceId);
 
             if (registeredChannels.containsKey(serviceId)) {
-                return registeredChannels.get(serviceId).
-                        getConstructor(InetSocketAddress.class, ClientProxy.class, RpcServiceClientUnit.class)
-                        .newInstance(address, clientProxy, unit);
+                return newDecoder(registeredChannels.get(serviceId), address, clientProxy, unit, protocolVersion);
             }
 
             ClassPool pool = ClassPool.getDefault();
@@ -63,6 +79,16 @@ public class RpcClientGenerator {
             cons.setModifiers(Modifier.PUBLIC);
             clientDecoder.addConstructor(cons);
 
+            //协商完成以后使用的构造函数，主要是需要调用父类的构造函数来设置bodyLength的长度和最大帧大小
+            CtConstructor versionCons = new CtConstructor(
+                    new CtClass[]{pool.get(InetSocketAddress.class.getName()), pool.get(ClientProxy.class.getName()),
+                            pool.get(RpcServiceClientUnit.class.getName()), CtClass.intType, CtClass.intType},
+                    clientDecoder
+            );
+            versionCons.setBody("{super($4, $5);$0.address=$1;$0.clientProxy=$2;$0.clientUnit = $3;}");
+            versionCons.setModifiers(Modifier.PUBLIC);
+            clientDecoder.addConstructor(versionCons);
+
             StringBuilder sb = new StringBuilder("switch ($2) { \n");
             //$0 代表this， $1,$2,$2...代表参数
             for (ByteObjectMap.PrimitiveEntry<RpcMethodUnit> methodUnit : unit.getMethodIdMapping().entries()) {
@@ -108,14 +134,25 @@ public class RpcClientGenerator {
 
             registeredChannels.put(serviceId, newDecoder);
             clientDecoder.detach();
-            return newDecoder.getConstructor(
-                    InetSocketAddress.class, ClientProxy.class, RpcServiceClientUnit.class)
-                    .newInstance(address, clientProxy, unit);
+            return newDecoder(newDecoder, address, clientProxy, unit, protocolVersion);
         } catch (Exception e) {
             throw new RpcException("Can not generate RpcMethodUnit", e);
         }
     }
 
+    private ChannelHandler newDecoder(Class<ChannelHandler> decoderClass, InetSocketAddress address,
+                                      ClientProxy clientProxy, RpcServiceClientUnit unit,
+                                      int protocolVersion) throws ReflectiveOperationException {
+        if (protocolVersion <= PROTOCOL_V1) {
+            return decoderClass.getConstructor(
+                    InetSocketAddress.class, ClientProxy.class, RpcServiceClientUnit.class)
+                    .newInstance(address, clientProxy, unit);
+        }
+        return decoderClass.getConstructor(
+                InetSocketAddress.class, ClientProxy.class, RpcServiceClientUnit.class, int.class, int.class)
+                .newInstance(address, clientProxy, unit, clientProxy.getMaxFrameLength(), protocolVersion);
+    }
+
     public synchronized ChannelHandler createChannelHandler(InetSocketAddress address, int serviceId) {
         try {
             if (registeredChannels.containsKey(serviceId)) {
@@ -250,7 +287,7 @@ public class RpcClientGenerator {
                         RpcMethodUnit methodUnit = findMatchedRpcMethodUnit(method, rpcClientUnit);
                         if (methodUnit != null) {
                             generateRpcServiceClient(
-                                    pool, returnType, method, methodUnit, rpcClient, serviceId
+                                    pool, returnType, method, methodUnit, rpcClient, serviceId, isAsync(method)
                             );
                         } else {
                             //没有找到符合metadata要求的方法，那么直接给该方法生成一个不支持的操作，也就是直接抛出一个错误
@@ -314,21 +351,89 @@ public class RpcClientGenerator {
     }
 
     private RpcMethodUnit findMatchedRpcMethodUnit(Method method, RpcServiceClientUnit rpcClientUnit) {
+        String methodName = method.getName();
+        RpcMethodUnit unit = findMatchedRpcMethodUnit(method, methodName, rpcClientUnit);
+        if (unit == null && isAsync(method) && methodName.endsWith(ASYNC_SUFFIX)) {
+            //xxxAsync 对应的是服务器端的 xxx 方法
+            unit = findMatchedRpcMethodUnit(
+                    method, methodName.substring(0, methodName.length() - ASYNC_SUFFIX.length()), rpcClientUnit
+            );
+        }
+        return unit;
+    }
+
+    private RpcMethodUnit findMatchedRpcMethodUnit(Method method, String methodName,
+                                                   RpcServiceClientUnit rpcClientUnit) {
         for (ByteObjectMap.PrimitiveEntry<RpcMethodUnit> entry : rpcClientUnit.getMethodIdMapping().entries()) {
             RpcMethodUnit unit = entry.value();
-            if (findMatchRpcMethod(unit, method)) {
+            if (findMatchRpcMethod(unit, method, methodName)) {
                 return unit;
             }
         }
         return null;
     }
 
+    private boolean isAsync(Method method) {
+        return CompletableFuture.class.equals(method.getReturnType());
+    }
+
+    private boolean isStream(Method method) {
+        return StreamHelper.isStreamType(method.getReturnType());
+    }
+
+    /**
+     * 异步方法的返回值是CompletableFuture，所以需要使用泛型参数来和metadata里面的返回值做比较，CompletableFuture&lt;Void&gt;
+     * 对应的是服务器端的void方法
+     *
+     * @param method 接口里面的方法
+     * @return 返回用于和metadata比较的返回值类型
+     */
+    private String getReturnTypeName(Method method) {
+        if (isStream(method)) {
+            //流式方法的metadata里面是元素的类型
+            try {
+                return StreamHelper.getElementType(method.getGenericReturnType()).getName();
+            } catch (RpcException e) {
+                return Object.class.getName();
+            }
+        }
+
+        if (!isAsync(method)) {
+            return Void.TYPE.equals(method.getGenericReturnType()) ? EMPTY : method.getReturnType().getName();
+        }
+
+        Type genericReturnType = method.getGenericReturnType();
+        if (genericReturnType instanceof ParameterizedType) {
+            Type actualType = ((ParameterizedType) genericReturnType).getActualTypeArguments()[0];
+            if (actualType instanceof ParameterizedType) {
+                actualType = ((ParameterizedType) actualType).getRawType();
+            }
+            if (actualType instanceof Class) {
+                return Void.class.equals(actualType) ? EMPTY : ((Class<?>) actualType).getName();
+            }
+        }
+        return Object.class.getName();
+    }
+
+    /**
+     * CompletableFuture的泛型参数只能够是包装类型，服务器端可能声明的是基本类型，所以统一转换成包装类型来比较
+     */
+    private String toWrapperName(String typeName) {
+        try {
+            return ClassUtils.primitiveToWrapper(ClassUtils.getClass(typeName)).getName();
+        } catch (ClassNotFoundException e) {
+            return typeName;
+        }
+    }
+
     private void generateRpcServiceClient(ClassPool pool,
                                           CtClass returnType,
                                           Method method,
-                                          RpcMethodUnit methodUnit, CtClass rpcClient, int serviceId) {
+                                          RpcMethodUnit methodUnit, CtClass rpcClient, int serviceId,
+                                          boolean async) {
         try {
-            String key = "field_" + serviceId + "_" + methodUnit.getMethodId();
+            //同一个接口里面可以同时声明同步和异步两个版本，他们对应的是同一个RpcMethodUnit，所以字段名字需要区分开
+            String key = "field_" + serviceId + "_" + methodUnit.getMethodId() + (async ? "_async" : "");
             CtField methodUnitField = new CtField(
                     pool.get(methodUnit.getClass().getName()), key, rpcClient
             );
@@ -336,7 +441,7 @@ public class RpcClientGenerator {
             rpcClient.addField(methodUnitField);
 
             //添加setter方法，主要是为了把值设置进去
-            String methodName = "setField_" + serviceId + "_" + methodUnit.getMethodId();
+            String methodName = "setField_" + serviceId + "_" + methodUnit.getMethodId() + (async ? "_async" : "");
             rpcClient.addMethod(CtNewMethod.setter(methodName, methodUnitField));
             setterMethodMapping.put(methodName, methodUnit);
 
@@ -349,35 +454,103 @@ public class RpcClientGenerator {
                     rpcClient
             );
             matchedMethod.setModifiers(Modifier.PUBLIC);
-            if (parameterTypes.length <= 0) {
-                matchedMethod.setBody(
-                        "{return ($r)$0.nettyClient.invoke($0." + key + ", null);}"
-                );
-            } else {
-                matchedMethod.setBody(
-                        "{return ($r)$0.nettyClient.invoke($0." + key + ", $1);}"
-                );
+            String invoker = async ? "invokeAsync" : isStream(method) ? "invokeStream" : "invoke";
+            //返回值声明为Stream的时候，需要把RpcStream转换成Stream，Iterator的话直接返回RpcStream就可以了
+            String converter = Stream.class.equals(method.getReturnType()) ? ".stream()" : "";
+            //方法上面单独指定的超时时间直接作为常量生成到调用里面，0表示使用@RpcClient上面的配置
+            RpcMethod rpcMethod = method.getDeclaredAnnotation(RpcMethod.class);
+            String timeout = (rpcMethod == null ? 0 : rpcMethod.timeoutMillis()) + "L";
+            if (rpcMethod != null && rpcMethod.hedge()) {
+                prepareHedge(method, methodUnit, rpcMethod);
+            }
+            if (rpcMethod != null && rpcMethod.coalesce()) {
+                if (isStream(method)) {
+                    log.warn("Method {} is a stream, coalesce is ignored", method);
+                } else {
+                    methodUnit.setCoalesce(true);
+                }
             }
+            if (rpcMethod != null && rpcMethod.cacheTtlMillis() > 0) {
+                prepareCache(method, methodUnit, rpcMethod);
+            }
+            if (rpcMethod != null && rpcMethod.broadcast()) {
+                prepareBroadcast(method, methodUnit, rpcMethod);
+            }
+            String call = "$0.nettyClient." + invoker + "($0." + key + ", "
+                    + (parameterTypes.length <= 0 ? "null" : "($w)$1") + ", " + timeout + ")" + converter;
+            if (!async && method.getReturnType().isPrimitive() && method.getReturnType() != void.class) {
+                //在RpcBatch.call里面记录的时候invoke返回null，基本类型直接拆箱会抛出NullPointerException
+                call = RpcBatch.class.getName() + ".placeholder(" + call + ", $type)";
+            }
+            matchedMethod.setBody("{return ($r)" + call + ";}");
             rpcClient.addMethod(matchedMethod);
         } catch (Exception e) {
             throw new RpcException("Can not support implement this method " + method, e);
         }
     }
 
+    /**
+     * 同步和异步两个版本对应的是同一个RpcMethodUnit，所以共用同一个LatencyTracker；服务器端没有声明幂等的方法重复执行是不安全的，
+     * 这个时候忽略客户端的配置
+     */
+    private void prepareHedge(Method method, RpcMethodUnit methodUnit, RpcMethod rpcMethod) {
+        if (!methodUnit.getMetadata().isIdempotent() || isStream(method)) {
+            log.warn("Method {} is not idempotent on server side or is a stream, hedge is ignored", method);
+            return;
+        }
+        methodUnit.setHedgeDelayMillis(rpcMethod.hedgeDelayMillis());
+        if (methodUnit.getLatencyTracker() == null) {
+            methodUnit.setLatencyTracker(new LatencyTracker());
+        }
+    }
+
+    /**
+     * 和对冲一样只有服务器端声明了幂等的方法才可以缓存，单向调用没有结果，同步和异步两个版本共用同一个缓存
+     */
+    private void prepareCache(Method method, RpcMethodUnit methodUnit, RpcMethod rpcMethod) {
+        MethodMetadata metadata = methodUnit.getMetadata();
+        if (!metadata.isIdempotent() || metadata.isOneWay() || isStream(method)) {
+            log.warn("Method {} is not idempotent on server side, or is one way or a stream, cache is ignored", method);
+            return;
+        }
+        if (methodUnit.getResultCache() == null) {
+            methodUnit.setResultCache(new ResultCache(methodUnit, rpcMethod.cacheMaxSize(), rpcMethod.cacheTtlMillis()));
+        }
+    }
+
+    /**
+     * 同步和异步两个版本共用同一个Reducer，创建失败的时候直接报错，而不是悄悄的变成普通的调用
+     */
+    @SuppressWarnings("unchecked")
+    private void prepareBroadcast(Method method, RpcMethodUnit methodUnit, RpcMethod rpcMethod) throws Exception {
+        if (isStream(method)) {
+            log.warn("Method {} is a stream, broadcast is ignored", method);
+            return;
+        }
+        if (methodUnit.getReducer() == null) {
+            methodUnit.setReducer(rpcMethod.reducer().getConstructor().newInstance());
+            methodUnit.setPartialResult(rpcMethod.partialResult());
+        }
+    }
+
     /**
      * 如果客户端使用了@RpcMethod，但是服务器端并没有该方法的Metadata信息，就会导致找不到MethodUnit,所以就不匹配
      *
      * @param methodUnit 该方法的metadata信息
      * @param method     接口里面使用了@RpcMethod标注的方法
+     * @param methodName 需要匹配的方法名字，异步方法可能会去掉Async后缀
      */
-    private boolean findMatchRpcMethod(RpcMethodUnit methodUnit, Method method) {
+    private boolean findMatchRpcMethod(RpcMethodUnit methodUnit, Method method, String methodName) {
         MethodMetadata metadata = methodUnit.getMetadata();
         Class<?>[] parameterTypes = method.getParameterTypes();
+        String returnType = getReturnTypeName(method);
+        String expectedReturnType = isAsync(method) ?
+                toWrapperName(metadata.getReturnType()) : metadata.getReturnType();
         if (new EqualsBuilder()
-                .append(method.getName(), metadata.getMethodName())
-                .append(Void.TYPE.equals(method.getGenericReturnType()) ? EMPTY : method.getReturnType().getName(),
-                        metadata.getReturnType())
+                .append(methodName, metadata.getMethodName())
+                .append(returnType, expectedReturnType)
                 .append(parameterTypes.length <= 0 ? EMPTY : parameterTypes[0].getName(), metadata.getParameterType())
+                .append(isStream(method), metadata.isStream())
                 .isEquals()) {
             //方法签名都相等的话，这个时候默认就找到了和metadata对应上的方法了，那么就可以给当前接口添加方法了
             Serialization serialization = method.getDeclaredAnnotation(Serialization.class);
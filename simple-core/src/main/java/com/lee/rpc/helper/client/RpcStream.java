@@ -0,0 +1,182 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.RpcException;
+import com.lee.rpc.RpcMethodUnit;
+import com.lee.rpc.helper.client.ClientHelper.Task;
+import com.lee.rpc.util.exception.ApplicationException;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 流式方法返回给调用者的Iterator，IO线程每收到一个STREAM帧就放一个元素到队列里面，调用线程一边取一边处理
+ * <p>
+ * 和普通的Task一样放在Channel的PendingRequests里面，STREAM帧不会把它删除掉，只有结束帧(EMPTY_TYPE或者ABNORMAL)才会删除，
+ * 所以PendingRequests.failAll的时候同样可以结束还在等待的流。已经开始接收的流是不会重试的，因为调用者可能已经处理了前面的元素
+ * <p>
+ * 队列里面的元素超过HIGH_WATER_MARK的时候通过PendingRequests.pauseRead停止读取Socket，调用者取到只剩LOW_WATER_MARK的时候
+ * 再恢复，这样TCP的窗口满了以后服务器的Channel会变成不可写，服务器就停止发送了，而不是把元素都堆积在客户端的内存里面。
+ * 注意：暂停的是整个Channel，同一个Channel上面的其他回复也会跟着等待，所以流的消费者不要太慢
+ *
+ * @author Administrator
+ */
+public class RpcStream implements Task, Iterator<Object>, AutoCloseable {
+
+    private static final Object END = new Object();
+    private static final int HIGH_WATER_MARK = 256;
+    private static final int LOW_WATER_MARK = 64;
+
+    /**
+     * 暂停读取以后已经读到的数据还是会继续解码，所以队列本身不能够限制容量，否则这些元素只能够丢掉
+     */
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private final long requestId;
+    private final RpcMethodUnit unit;
+    private final PendingRequests pending;
+    private final long timeoutMillis;
+
+    private Object next;
+    private boolean finished;
+    private volatile boolean closed;
+
+    public RpcStream(long requestId, RpcMethodUnit unit, PendingRequests pending, long timeoutMillis) {
+        this.requestId = requestId;
+        this.unit = unit;
+        this.pending = pending;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 在IO线程里面调用，deserializeOnCaller为true的时候是还没有反序列化的body
+     */
+    public void offer(Object value) {
+        enqueue(value);
+        if (!closed && queue.size() >= HIGH_WATER_MARK && paused.compareAndSet(false, true)) {
+            pending.pauseRead();
+            if (closed) {
+                //检查和暂停之间调用者close了，close里面的resume可能没有看到paused
+                resume();
+            }
+        }
+    }
+
+    /**
+     * 结束帧，null表示正常结束，RpcException表示服务器端出错了
+     */
+    @Override
+    public void setValue(long requestId, Object object) {
+        enqueue(object == null ? END : object);
+        //后面不会再有这个流的数据了，不需要再让同一个Channel上面的其他回复等待
+        resume();
+    }
+
+    @Override
+    public boolean isAbandoned(long requestId) {
+        return closed;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+
+        Object value;
+        try {
+            value = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new ApplicationException("Interrupted by any other thread, may be client is stopping", e);
+        }
+
+        if (queue.size() <= LOW_WATER_MARK) {
+            resume();
+        }
+        if (value == null) {
+            close();
+            throw new ApplicationException(new TimeoutException("Stream " + requestId + " timeout"));
+        }
+        if (value == END) {
+            finished = true;
+            return false;
+        }
+        if (value instanceof RpcException) {
+            finished = true;
+            throw new ApplicationException((RpcException) value);
+        }
+
+        try {
+            next = ClientProxy.deserializeResult(unit, value);
+        } catch (ApplicationException e) {
+            close();
+            throw e;
+        }
+        return true;
+    }
+
+    @Override
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object value = next;
+        next = null;
+        return value;
+    }
+
+    /**
+     * 没有读取完就不再需要的时候一定要调用，否则队列超过高水位以后整个Channel都会停止读取，直到调用者取走这些元素
+     */
+    @Override
+    public void close() {
+        closed = true;
+        finished = true;
+        next = null;
+        //结束帧已经到了的话PendingRequests里面已经没有了，否则会通知服务器不用再继续发送了
+        pending.cancel(requestId);
+        drain();
+        resume();
+    }
+
+    public Stream<Object> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false
+        ).onClose(this::close);
+    }
+
+    private void enqueue(Object value) {
+        queue.offer(value);
+        if (closed) {
+            //调用者已经不要了，close和offer同时发生的时候，这里保证放进来的body一定会被释放
+            drain();
+        }
+    }
+
+    private void resume() {
+        if (paused.compareAndSet(true, false)) {
+            pending.resumeRead();
+        }
+    }
+
+    private void drain() {
+        Object value;
+        while ((value = queue.poll()) != null) {
+            ReferenceCountUtil.release(value);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.RpcMethodUnit;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * 每一个ClientProxy一个，参考RpcMethod.coalesce，同一个方法并且序列化以后的参数完全一样的并发调用只发送一个请求，
+ * 其他的调用者等待同一个结果，用来避免缓存失效的时候大量相同的请求同时打到服务器上面
+ * <p>
+ * 参数在调用线程里面就已经序列化好了，所以直接使用序列化以后的字节来作为key，不需要参数本身实现equals和hashCode
+ * 只有正在执行的调用才会合并，结果返回以后马上删除，不会缓存
+ *
+ * @author Administrator
+ */
+public class SingleFlight {
+
+    private final ConcurrentMap<Key, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * @param encoded 交给SingleFlight管理，合并掉的调用直接释放，否则交给call去发送
+     * @param call    没有相同的调用正在执行的时候用来发送请求
+     * @return 每一个调用者都拿到一个单独的future，某一个调用者cancel或者complete不会影响其他的调用者
+     */
+    public CompletableFuture<Object> execute(RpcMethodUnit unit, ByteBuf encoded,
+                                             Supplier<CompletableFuture<Object>> call) {
+        Key key = new Key(unit, encoded);
+        CompletableFuture<Object> shared = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, shared);
+        if (existing != null) {
+            ReferenceCountUtil.release(encoded);
+            return copy(existing);
+        }
+
+        //key里面的encoded在请求完成的时候会被释放，删除之前还需要用来比较，所以多持有一份引用
+        key.retain();
+        shared.whenComplete((value, cause) -> {
+            calls.remove(key, shared);
+            key.release();
+        });
+
+        CompletableFuture<Object> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            shared.completeExceptionally(e);
+            throw e;
+        }
+        result.whenComplete((value, cause) -> {
+            if (cause == null) {
+                shared.complete(value);
+            } else {
+                shared.completeExceptionally(cause);
+            }
+        });
+        //发送请求的调用者同样拿到一个单独的future，它cancel或者complete的时候不会影响正在等待同一个结果的其他调用者
+        return copy(shared);
+    }
+
+    private static CompletableFuture<Object> copy(CompletableFuture<Object> source) {
+        CompletableFuture<Object> copy = new CompletableFuture<>();
+        source.whenComplete((value, cause) -> {
+            if (cause == null) {
+                copy.complete(value);
+            } else {
+                copy.completeExceptionally(cause);
+            }
+        });
+        return copy;
+    }
+
+    private static final class Key {
+
+        private final RpcMethodUnit unit;
+        private final ByteBuf encoded;
+        private final int hash;
+
+        Key(RpcMethodUnit unit, ByteBuf encoded) {
+            this.unit = unit;
+            this.encoded = encoded;
+            this.hash = 31 * System.identityHashCode(unit) + (encoded == null ? 0 : ByteBufUtil.hashCode(encoded));
+        }
+
+        void retain() {
+            if (encoded != null) {
+                encoded.retain();
+            }
+        }
+
+        void release() {
+            ReferenceCountUtil.release(encoded);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (unit != other.unit || hash != other.hash) {
+                return false;
+            }
+            if (encoded == null || other.encoded == null) {
+                return encoded == other.encoded;
+            }
+            return ByteBufUtil.equals(encoded, other.encoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.helper.client.ClientHelper.Task;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 同步调用等待回复使用的，同步调用的线程同一时间只会有一个请求在等待，所以每一个线程一个，一直重复使用，不需要每次调用都创建
+ * CompletableFuture，超时的时候也不需要创建TimeoutException和ExecutionException
+ * <p>
+ * state就是当前等待的requestId，相当于一个generation，每一次发送都会换成新的requestId，上一次超时的请求的回复晚到的时候，
+ * requestId已经对不上了，不会把结果设置给当前的请求
+ * <p>
+ * IDLE -&gt; requestId -&gt; COMPLETING -&gt; COMPLETED -&gt; IDLE，调用者超时或者被中断的时候直接从requestId变回IDLE，
+ * 和IO线程之间通过CAS来决定谁赢
+ *
+ * @author Administrator
+ */
+public class SyncWaiter implements Task {
+
+    /**
+     * await超时的时候返回这个值
+     */
+    public static final Object TIMEOUT = new Object();
+
+    private static final ThreadLocal<SyncWaiter> WAITERS = ThreadLocal.withInitial(SyncWaiter::new);
+    private static final AtomicLongFieldUpdater<SyncWaiter> STATE =
+            AtomicLongFieldUpdater.newUpdater(SyncWaiter.class, "state");
+
+    /**
+     * requestId都是大于0的，所以使用小于等于0的值来表示其他的状态
+     */
+    private static final long IDLE = 0;
+    private static final long COMPLETING = -1;
+    private static final long COMPLETED = -2;
+
+    private final Thread thread = Thread.currentThread();
+    private volatile long state = IDLE;
+    private Object value;
+
+    private SyncWaiter() {
+    }
+
+    public static SyncWaiter current() {
+        return WAITERS.get();
+    }
+
+    /**
+     * 必须在请求写出去之前调用，否则回复可能会比arm先到达
+     *
+     * @param requestId 这一次需要等待的请求
+     */
+    public SyncWaiter arm(long requestId) {
+        value = null;
+        state = requestId;
+        return this;
+    }
+
+    /**
+     * 在IO线程里面调用，requestId和当前等待的请求不一样的时候，说明调用者已经不再等待这个回复了
+     */
+    @Override
+    public void setValue(long requestId, Object object) {
+        if (!STATE.compareAndSet(this, requestId, COMPLETING)) {
+            ReferenceCountUtil.release(object);
+            return;
+        }
+        value = object;
+        state = COMPLETED;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * 超时、被中断或者已经有结果的时候state都不再是requestId了
+     */
+    @Override
+    public boolean isAbandoned(long requestId) {
+        return state != requestId;
+    }
+
+    /**
+     * @param requestId 调用arm的时候使用的requestId
+     * @param timeout   最多等待的时间
+     * @return 返回服务器的结果，超时的时候返回TIMEOUT
+     * @throws InterruptedException 等待的时候被中断了
+     */
+    public Object await(long requestId, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long current = state;
+            if (current == COMPLETED) {
+                return take();
+            }
+
+            if (Thread.interrupted()) {
+                abandon(requestId);
+                throw new InterruptedException();
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                if (STATE.compareAndSet(this, requestId, IDLE)) {
+                    return TIMEOUT;
+                }
+                //IO线程正在设置结果，马上就可以拿到了
+                Thread.yield();
+            } else if (current == requestId) {
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 被中断的时候调用，如果结果已经到了，需要把还没有反序列化的body释放掉
+     */
+    private void abandon(long requestId) {
+        if (STATE.compareAndSet(this, requestId, IDLE)) {
+            return;
+        }
+        while (state != COMPLETED) {
+            Thread.yield();
+        }
+        ReferenceCountUtil.release(take());
+    }
+
+    private Object take() {
+        Object result = value;
+        value = null;
+        state = IDLE;
+        return result;
+    }
+}
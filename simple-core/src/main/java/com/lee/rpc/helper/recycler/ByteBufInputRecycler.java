@@ -0,0 +1,24 @@
+package com.lee.rpc.helper.recycler;
+
+import com.lee.rpc.schema.ByteBufInput;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.ObjectPool;
+
+/**
+ * @author Administrator
+ */
+public class ByteBufInputRecycler {
+
+    private static final ObjectPool<ByteBufInput> RECYCLER = ObjectPool.newPool(ByteBufInput::new);
+
+    private ByteBufInputRecycler() {
+    }
+
+    public static ByteBufInput newInstance(ByteBuf byteBuf) {
+        return RECYCLER.get().withByteBuf(byteBuf);
+    }
+
+    public static void recycle(ByteBufInput input) {
+        input.recycle();
+    }
+}
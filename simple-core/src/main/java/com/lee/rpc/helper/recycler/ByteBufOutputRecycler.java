@@ -0,0 +1,24 @@
+package com.lee.rpc.helper.recycler;
+
+import com.lee.rpc.schema.ByteBufOutput;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.ObjectPool;
+
+/**
+ * @author Administrator
+ */
+public class ByteBufOutputRecycler {
+
+    private static final ObjectPool<ByteBufOutput> RECYCLER = ObjectPool.newPool(ByteBufOutput::new);
+
+    private ByteBufOutputRecycler() {
+    }
+
+    public static ByteBufOutput newInstance(ByteBuf byteBuf) {
+        return RECYCLER.get().withByteBuf(byteBuf);
+    }
+
+    public static void recycle(ByteBufOutput output) {
+        output.recycle();
+    }
+}
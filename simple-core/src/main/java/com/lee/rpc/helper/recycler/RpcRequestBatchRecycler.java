@@ -0,0 +1,25 @@
+package com.lee.rpc.helper.recycler;
+
+import com.lee.rpc.RpcRequestBatch;
+import io.netty.util.internal.ObjectPool;
+
+/**
+ * 和RpcRequestRecycler一样，在IO线程里面创建，在encoder里面回收
+ *
+ * @author Administrator
+ */
+public class RpcRequestBatchRecycler {
+
+    private static final ObjectPool<RpcRequestBatch> RECYCLER = ObjectPool.newPool(RpcRequestBatch::new);
+
+    private RpcRequestBatchRecycler() {
+    }
+
+    public static RpcRequestBatch newInstance(int serviceId) {
+        return RECYCLER.get().serviceId(serviceId);
+    }
+
+    public static void recycle(RpcRequestBatch batch) {
+        batch.recycle();
+    }
+}
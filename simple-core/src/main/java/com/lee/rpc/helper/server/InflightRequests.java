@@ -0,0 +1,106 @@
+package com.lee.rpc.helper.server;
+
+import com.lee.rpc.RpcRequest;
+import com.lee.rpc.executor.DelayWorker;
+import com.lee.rpc.helper.ProtocolHelper;
+import com.lee.rpc.helper.recycler.RpcRequestRecycler;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.lee.rpc.helper.RpcHelper.INFLIGHT;
+
+/**
+ * 服务器端每一个Channel一个，记录已经分发给执行器但是还没有回复的请求，和客户端的PendingRequests一样只能够在EventLoop里面访问
+ * <p>
+ * 1. decoder分发请求的时候注册
+ * 2. encoder写回复的时候删除，然后才回收RpcRequest
+ * 3. 收到CANCEL帧的时候标记对应的RpcRequest，执行器取出来的时候直接丢掉，还在DelayWorker里面的直接删除
+ * <p>
+ * 不写回复就丢掉的请求必须通过release交给EventLoop先删除再回收，否则CANCEL可能会标记到已经被别的请求重用的RpcRequest上面
+ * 只有协商出来的协议版本支持CANCEL的Channel才会创建，老的客户端不会有任何额外的开销
+ *
+ * @author Administrator
+ */
+@Slf4j
+public class InflightRequests {
+
+    private final LongObjectMap<RpcRequest> requests = new LongObjectHashMap<>();
+    private final EventLoop eventLoop;
+
+    public InflightRequests(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    public static void install(Channel channel, int version) {
+        if (ProtocolHelper.isCancelSupported(version)) {
+            channel.attr(INFLIGHT).set(new InflightRequests(channel.eventLoop()));
+        }
+    }
+
+    /**
+     * @return 协议版本不支持CANCEL的Channel返回null
+     */
+    public static InflightRequests of(Channel channel) {
+        return channel.attr(INFLIGHT).get();
+    }
+
+    /**
+     * 可以在任何线程里面调用，不写回复就丢掉的请求通过这里回收
+     */
+    public static void release(RpcRequest request) {
+        InflightRequests inflight = of(request.getChannel());
+        if (inflight == null) {
+            RpcRequestRecycler.recycle(request);
+            return;
+        }
+
+        try {
+            inflight.eventLoop.execute(() -> {
+                inflight.complete(request);
+                RpcRequestRecycler.recycle(request);
+            });
+        } catch (RejectedExecutionException e) {
+            //EventLoop已经关闭了，不会再有CANCEL帧了，这个RpcRequest交给GC就可以了
+            log.debug("EventLoop is shutting down, can not recycle request {}", request.getRequestId());
+        }
+    }
+
+    /**
+     * 只能够在IO线程里面调用，参考RpcServerDecoder
+     */
+    public void register(RpcRequest request) {
+        requests.put(request.getRequestId(), request);
+    }
+
+    /**
+     * 只能够在IO线程里面调用，STREAM帧和原始的请求使用的是同一个requestId，所以只有原始的请求写出去的时候才删除
+     */
+    public void complete(RpcRequest request) {
+        long requestId = request.getRequestId();
+        if (requests.get(requestId) == request) {
+            requests.remove(requestId);
+        }
+    }
+
+    /**
+     * 只能够在IO线程里面调用，正在执行的请求没有办法中断，只能够等它执行完，流式方法会在发送下一个元素之前停下来
+     */
+    public void cancel(long requestId) {
+        RpcRequest request = requests.remove(requestId);
+        if (request == null) {
+            //已经回复了，或者CANCEL比请求先到
+            return;
+        }
+
+        request.cancel();
+        if (request.getRetryCount() > 0) {
+            //进过DelayWorker的请求，还在DelayQueue里面的话直接删除，不需要再等5秒
+            DelayWorker.getInstance().cancel(request);
+        }
+    }
+}
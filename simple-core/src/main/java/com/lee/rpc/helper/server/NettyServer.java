@@ -77,7 +77,7 @@ public class NettyServer {
                 ch.pipeline().addLast(
                         new IdleStateHandler(0, 0, 200)
                 );
-                ch.pipeline().addLast(SERVER_GENERATOR.createRpcServerDecoder());
+                ch.pipeline().addLast("decoder", SERVER_GENERATOR.createRpcServerDecoder());
                 ch.pipeline().addLast(new RpcServerEncoder());
                 ch.pipeline().addLast(new ServerTimeOutHandler());
             }
@@ -18,6 +18,24 @@ public class RpcServerGenerator {
 
     private Class<ChannelHandler> decoderClass;
 
+    /**
+     * METADATA协商完成以后使用，生成的decoder没有显示的声明构造函数，javassist会继承父类所有的构造函数
+     *
+     * @param maxFrameLength  最大帧大小
+     * @param protocolVersion 协商出来的协议版本
+     * @return 返回指定协议版本的decoder
+     */
+    public synchronized ChannelHandler createRpcServerDecoder(int maxFrameLength, int protocolVersion) {
+        try {
+            if (decoderClass == null) {
+                createRpcServerDecoder();
+            }
+            return decoderClass.getConstructor(int.class, int.class).newInstance(maxFrameLength, protocolVersion);
+        } catch (Exception e) {
+            throw new RpcException("Can not create RpcServerDecoder with protocol version " + protocolVersion, e);
+        }
+    }
+
     public synchronized ChannelHandler createRpcServerDecoder() {
         try {
             if (decoderClass != null) {
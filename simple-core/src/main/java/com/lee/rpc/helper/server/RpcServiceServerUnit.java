@@ -25,6 +25,8 @@ public class RpcServiceServerUnit {
     private int serviceId;
     private int workers;
     private Weight weight;
+    private int maxFrameLength;
+    private int batchSize;
     private RpcService rpcService;
     private InetSocketAddress address;
     private ByteObjectMap<RpcMethodUnit> methodIdMapping = new ByteObjectHashMap<>(16);
@@ -91,6 +91,8 @@ public class ServerHelper {
                     service.setServiceId(rpcServerWrapper.serviceId);
                     service.setWorkers(rpcServerWrapper.workers);
                     service.setWeight(rpcServerWrapper.rpcServer.weight());
+                    service.setMaxFrameLength(rpcServerWrapper.rpcServer.maxFrameLength());
+                    service.setBatchSize(rpcServerWrapper.rpcServer.batchSize());
                     Method[] declaredMethods = rpcServerWrapper.inter.getDeclaredMethods();
 
                     //使用方法签名来排序，这样保证在其他地方这个顺序也是一致的
@@ -0,0 +1,329 @@
+package com.lee.rpc.schema;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.ObjectPool;
+import io.protostuff.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static io.protostuff.WireFormat.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 直接从ByteBuf里面读取的protostuff Input，格式和ProtostuffIOUtil.mergeFrom完全一样，嵌套的对象按照group来解析
+ * <p>
+ * 不再经过InputStream一个字节一个字节的读取，varint直接在ByteBuf上面解析，字符串和byte[]按照长度一次性读取
+ *
+ * @author Administrator
+ */
+public class ByteBufInput implements Input {
+
+    private final ObjectPool.Handle<ByteBufInput> handle;
+    private ByteBuf buffer;
+    private int limit;
+    private int lastTag;
+
+    public ByteBufInput(ObjectPool.Handle<ByteBufInput> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * 只读取readerIndex到writerIndex之间的数据
+     */
+    public ByteBufInput withByteBuf(ByteBuf buffer) {
+        this.buffer = buffer;
+        this.limit = buffer.writerIndex();
+        this.lastTag = 0;
+        return this;
+    }
+
+    public void recycle() {
+        this.buffer = null;
+        this.limit = 0;
+        this.lastTag = 0;
+        handle.recycle(this);
+    }
+
+    /**
+     * 读取完成以后，最后一个tag必须是0，也就是读到了末尾或者group的结束标志
+     */
+    public void checkLastTagWas(int value) throws ProtobufException {
+        if (lastTag != value) {
+            throw new ProtobufException("Protocol message end-group tag did not match expected tag.");
+        }
+    }
+
+    @Override
+    public <T> void handleUnknownField(int fieldNumber, Schema<T> schema) throws IOException {
+        skipField(lastTag);
+    }
+
+    @Override
+    public <T> int readFieldNumber(Schema<T> schema) throws IOException {
+        if (buffer.readerIndex() >= limit) {
+            lastTag = 0;
+            return 0;
+        }
+
+        int tag = readRawVarInt32();
+        int fieldNumber = tag >>> 3;
+        if (fieldNumber == 0) {
+            if (getTagWireType(tag) == WIRETYPE_TAIL_DELIMITER) {
+                lastTag = 0;
+                return 0;
+            }
+            throw new ProtobufException("Protocol message contained an invalid tag (zero).");
+        }
+
+        if (getTagWireType(tag) == WIRETYPE_END_GROUP) {
+            lastTag = 0;
+            return 0;
+        }
+
+        lastTag = tag;
+        return fieldNumber;
+    }
+
+    @Override
+    public int readInt32() throws IOException {
+        return readRawVarInt32();
+    }
+
+    @Override
+    public int readUInt32() throws IOException {
+        return readRawVarInt32();
+    }
+
+    @Override
+    public int readSInt32() throws IOException {
+        int n = readRawVarInt32();
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    @Override
+    public int readFixed32() throws IOException {
+        checkReadable(4);
+        return buffer.readIntLE();
+    }
+
+    @Override
+    public int readSFixed32() throws IOException {
+        return readFixed32();
+    }
+
+    @Override
+    public long readInt64() throws IOException {
+        return readRawVarInt64();
+    }
+
+    @Override
+    public long readUInt64() throws IOException {
+        return readRawVarInt64();
+    }
+
+    @Override
+    public long readSInt64() throws IOException {
+        long n = readRawVarInt64();
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    @Override
+    public long readFixed64() throws IOException {
+        checkReadable(8);
+        return buffer.readLongLE();
+    }
+
+    @Override
+    public long readSFixed64() throws IOException {
+        return readFixed64();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readFixed32());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readFixed64());
+    }
+
+    @Override
+    public boolean readBool() throws IOException {
+        return readRawVarInt32() != 0;
+    }
+
+    @Override
+    public int readEnum() throws IOException {
+        return readInt32();
+    }
+
+    @Override
+    public String readString() throws IOException {
+        int length = readLength();
+        String value = buffer.toString(buffer.readerIndex(), length, UTF_8);
+        buffer.skipBytes(length);
+        return value;
+    }
+
+    @Override
+    public ByteString readBytes() throws IOException {
+        return ByteString.copyFrom(readByteArray());
+    }
+
+    @Override
+    public void readBytes(ByteBuffer dst) throws IOException {
+        int length = readLength();
+        ByteBuffer target = dst.duplicate();
+        target.limit(target.position() + length);
+        buffer.readBytes(target);
+        dst.position(target.position());
+    }
+
+    @Override
+    public byte[] readByteArray() throws IOException {
+        int length = readLength();
+        byte[] value = new byte[length];
+        buffer.readBytes(value);
+        return value;
+    }
+
+    @Override
+    public ByteBuffer readByteBuffer() throws IOException {
+        //不能够直接返回nioBuffer，ByteBuf在反序列化完成以后就会被释放掉
+        return ByteBuffer.wrap(readByteArray());
+    }
+
+    @Override
+    public <T> T mergeObject(T value, Schema<T> schema) throws IOException {
+        if (value == null) {
+            value = schema.newMessage();
+        }
+        schema.mergeFrom(this, value);
+        if (!schema.isInitialized(value)) {
+            throw new UninitializedMessageException(value, schema);
+        }
+        checkLastTagWas(0);
+        return value;
+    }
+
+    @Override
+    public void transferByteRangeTo(Output output, boolean utf8String, int fieldNumber,
+                                    boolean repeated) throws IOException {
+        int length = readLength();
+        if (buffer.hasArray()) {
+            output.writeByteRange(utf8String, fieldNumber,
+                    buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), length, repeated);
+            buffer.skipBytes(length);
+        } else {
+            byte[] value = new byte[length];
+            buffer.readBytes(value);
+            output.writeByteRange(utf8String, fieldNumber, value, 0, length, repeated);
+        }
+    }
+
+    private boolean skipField(int tag) throws IOException {
+        switch (getTagWireType(tag)) {
+            case WIRETYPE_VARINT:
+                readRawVarInt64();
+                return true;
+            case WIRETYPE_FIXED64:
+                checkReadable(8);
+                buffer.skipBytes(8);
+                return true;
+            case WIRETYPE_LENGTH_DELIMITED:
+                buffer.skipBytes(readLength());
+                return true;
+            case WIRETYPE_START_GROUP:
+                skipGroup(getTagFieldNumber(tag));
+                return true;
+            case WIRETYPE_END_GROUP:
+                return false;
+            case WIRETYPE_FIXED32:
+                checkReadable(4);
+                buffer.skipBytes(4);
+                return true;
+            default:
+                throw new ProtobufException("Protocol message tag had invalid wire type.");
+        }
+    }
+
+    private void skipGroup(int fieldNumber) throws IOException {
+        while (buffer.readerIndex() < limit) {
+            int tag = readRawVarInt32();
+            if (tag == 0 || !skipField(tag)) {
+                if (tag != makeTag(fieldNumber, WIRETYPE_END_GROUP)) {
+                    throw new ProtobufException("Protocol message end-group tag did not match expected tag.");
+                }
+                return;
+            }
+        }
+        throw truncated();
+    }
+
+    private int readLength() throws IOException {
+        int length = readRawVarInt32();
+        if (length < 0) {
+            throw new ProtobufException("CodedInput encountered an embedded string or bytes that misreported its size.");
+        }
+        checkReadable(length);
+        return length;
+    }
+
+    private void checkReadable(int length) throws ProtobufException {
+        if (limit - buffer.readerIndex() < length) {
+            throw truncated();
+        }
+    }
+
+    private int readRawVarInt32() throws IOException {
+        int index = buffer.readerIndex();
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (index >= limit) {
+                throw truncated();
+            }
+            byte b = buffer.getByte(index++);
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                buffer.readerIndex(index);
+                return result;
+            }
+        }
+
+        //负数的int32是按照64位编码的，高位的5个字节直接丢掉
+        for (int i = 0; i < 5; i++) {
+            if (index >= limit) {
+                throw truncated();
+            }
+            if (buffer.getByte(index++) >= 0) {
+                buffer.readerIndex(index);
+                return result;
+            }
+        }
+        throw new ProtobufException("CodedInput encountered a malformed varint.");
+    }
+
+    private long readRawVarInt64() throws IOException {
+        int index = buffer.readerIndex();
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (index >= limit) {
+                throw truncated();
+            }
+            byte b = buffer.getByte(index++);
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                buffer.readerIndex(index);
+                return result;
+            }
+        }
+        throw new ProtobufException("CodedInput encountered a malformed varint.");
+    }
+
+    private static ProtobufException truncated() {
+        return new ProtobufException("While parsing a protocol message, the input ended unexpectedly " +
+                "in the middle of a field.");
+    }
+}
@@ -0,0 +1,192 @@
+package com.lee.rpc.schema;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.internal.ObjectPool;
+import io.protostuff.ByteString;
+import io.protostuff.Output;
+import io.protostuff.Schema;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static io.protostuff.WireFormat.*;
+
+/**
+ * 直接写入ByteBuf的protostuff Output，格式和ProtostuffIOUtil.writeTo完全一样，嵌套的对象按照group来编码，
+ * 所以新老版本之间可以互相解析
+ * <p>
+ * ProtostuffIOUtil.writeTo需要先写到LinkedBuffer里面，然后再拷贝到OutputStream里面，这里直接写到ByteBuf里面，
+ * 字符串也是直接按照UTF-8编码写入，不需要中间的byte[]
+ *
+ * @author Administrator
+ */
+public class ByteBufOutput implements Output {
+
+    private final ObjectPool.Handle<ByteBufOutput> handle;
+    private ByteBuf buffer;
+
+    public ByteBufOutput(ObjectPool.Handle<ByteBufOutput> handle) {
+        this.handle = handle;
+    }
+
+    public ByteBufOutput withByteBuf(ByteBuf buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
+    public void recycle() {
+        this.buffer = null;
+        handle.recycle(this);
+    }
+
+    @Override
+    public void writeInt32(int fieldNumber, int value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_VARINT);
+        if (value < 0) {
+            //和protobuf一样，负数按照64位来编码
+            writeVarInt64(value);
+        } else {
+            writeVarInt32(value);
+        }
+    }
+
+    @Override
+    public void writeUInt32(int fieldNumber, int value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_VARINT);
+        writeVarInt32(value);
+    }
+
+    @Override
+    public void writeSInt32(int fieldNumber, int value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_VARINT);
+        writeVarInt32((value << 1) ^ (value >> 31));
+    }
+
+    @Override
+    public void writeFixed32(int fieldNumber, int value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_FIXED32);
+        buffer.writeIntLE(value);
+    }
+
+    @Override
+    public void writeSFixed32(int fieldNumber, int value, boolean repeated) throws IOException {
+        writeFixed32(fieldNumber, value, repeated);
+    }
+
+    @Override
+    public void writeInt64(int fieldNumber, long value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_VARINT);
+        writeVarInt64(value);
+    }
+
+    @Override
+    public void writeUInt64(int fieldNumber, long value, boolean repeated) throws IOException {
+        writeInt64(fieldNumber, value, repeated);
+    }
+
+    @Override
+    public void writeSInt64(int fieldNumber, long value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_VARINT);
+        writeVarInt64((value << 1) ^ (value >> 63));
+    }
+
+    @Override
+    public void writeFixed64(int fieldNumber, long value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_FIXED64);
+        buffer.writeLongLE(value);
+    }
+
+    @Override
+    public void writeSFixed64(int fieldNumber, long value, boolean repeated) throws IOException {
+        writeFixed64(fieldNumber, value, repeated);
+    }
+
+    @Override
+    public void writeFloat(int fieldNumber, float value, boolean repeated) throws IOException {
+        writeFixed32(fieldNumber, Float.floatToRawIntBits(value), repeated);
+    }
+
+    @Override
+    public void writeDouble(int fieldNumber, double value, boolean repeated) throws IOException {
+        writeFixed64(fieldNumber, Double.doubleToRawLongBits(value), repeated);
+    }
+
+    @Override
+    public void writeBool(int fieldNumber, boolean value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_VARINT);
+        buffer.writeByte(value ? 1 : 0);
+    }
+
+    @Override
+    public void writeEnum(int fieldNumber, int value, boolean repeated) throws IOException {
+        writeInt32(fieldNumber, value, repeated);
+    }
+
+    @Override
+    public void writeString(int fieldNumber, CharSequence value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+        //先计算出UTF-8以后的长度，然后直接编码到ByteBuf里面
+        int length = ByteBufUtil.utf8Bytes(value);
+        writeVarInt32(length);
+        ByteBufUtil.reserveAndWriteUtf8(buffer, value, length);
+    }
+
+    @Override
+    public void writeBytes(int fieldNumber, ByteString value, boolean repeated) throws IOException {
+        ByteString.writeTo(this, value, fieldNumber, repeated);
+    }
+
+    @Override
+    public void writeByteArray(int fieldNumber, byte[] value, boolean repeated) throws IOException {
+        writeByteRange(false, fieldNumber, value, 0, value.length, repeated);
+    }
+
+    @Override
+    public void writeByteRange(boolean utf8String, int fieldNumber,
+                               byte[] value, int offset, int length, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+        writeVarInt32(length);
+        buffer.writeBytes(value, offset, length);
+    }
+
+    @Override
+    public <T> void writeObject(int fieldNumber, T value, Schema<T> schema, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_START_GROUP);
+        schema.writeTo(this, value);
+        writeTag(fieldNumber, WIRETYPE_END_GROUP);
+    }
+
+    @Override
+    public void writeBytes(int fieldNumber, ByteBuffer value, boolean repeated) throws IOException {
+        writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+        writeVarInt32(value.remaining());
+        buffer.writeBytes(value.duplicate());
+    }
+
+    private void writeTag(int fieldNumber, int wireType) {
+        writeVarInt32(makeTag(fieldNumber, wireType));
+    }
+
+    private void writeVarInt32(int value) {
+        buffer.ensureWritable(5);
+        int index = buffer.writerIndex();
+        while ((value & ~0x7F) != 0) {
+            buffer.setByte(index++, (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.setByte(index++, value);
+        buffer.writerIndex(index);
+    }
+
+    private void writeVarInt64(long value) {
+        buffer.ensureWritable(10);
+        int index = buffer.writerIndex();
+        while ((value & ~0x7FL) != 0) {
+            buffer.setByte(index++, ((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.setByte(index++, (int) value);
+        buffer.writerIndex(index);
+    }
+}
@@ -0,0 +1,60 @@
+package com.lee.rpc.schema;
+
+import io.protostuff.Schema;
+
+/**
+ * SchemaGenerator生成的Schema的父类，子类只需要实现newMessage，mergeFrom和writeTo，字段的读写都是直接调用
+ * getter/setter的代码，不再像RuntimeSchema那样通过反射或者Unsafe一个字段一个字段的处理
+ *
+ * @author Administrator
+ */
+public abstract class GeneratedSchema<T> implements Schema<T> {
+
+    /**
+     * 嵌套对象的Schema，下标和生成代码里面使用的下标一致
+     */
+    protected final Schema<?>[] schemas;
+    private final Class<T> typeClass;
+    private final String[] fieldNames;
+
+    protected GeneratedSchema(Class<T> typeClass, String[] fieldNames, Schema<?>[] schemas) {
+        this.typeClass = typeClass;
+        this.fieldNames = fieldNames;
+        this.schemas = schemas;
+    }
+
+    @Override
+    public String getFieldName(int number) {
+        return number > 0 && number <= fieldNames.length ? fieldNames[number - 1] : null;
+    }
+
+    @Override
+    public int getFieldNumber(String name) {
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldNames[i].equals(name)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isInitialized(T message) {
+        return true;
+    }
+
+    @Override
+    public String messageName() {
+        return typeClass.getSimpleName();
+    }
+
+    @Override
+    public String messageFullName() {
+        return typeClass.getName();
+    }
+
+    @Override
+    public Class<? super T> typeClass() {
+        return typeClass;
+    }
+}
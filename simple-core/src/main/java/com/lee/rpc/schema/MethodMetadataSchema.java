@@ -35,6 +35,15 @@ public class MethodMetadataSchema implements Schema<MethodMetadata> {
                     ByteBuffer byteBuffer = input.readByteBuffer();
                     message.setMethodId(byteBuffer.get());
                     break;
+                case 5:
+                    message.setStream(input.readBool());
+                    break;
+                case 6:
+                    message.setIdempotent(input.readBool());
+                    break;
+                case 7:
+                    message.setOneWay(input.readBool());
+                    break;
                 default:
                     input.handleUnknownField(number, this);
             }
@@ -52,6 +61,16 @@ public class MethodMetadataSchema implements Schema<MethodMetadata> {
         buffer.put(message.getMethodId());
         buffer.flip();
         output.writeBytes(4, buffer, false);
+        //老版本不认识这个字段会直接跳过，所以只有流式方法才写
+        if (message.isStream()) {
+            output.writeBool(5, true, false);
+        }
+        if (message.isIdempotent()) {
+            output.writeBool(6, true, false);
+        }
+        if (message.isOneWay()) {
+            output.writeBool(7, true, false);
+        }
     }
 
     @Override
@@ -65,6 +84,12 @@ public class MethodMetadataSchema implements Schema<MethodMetadata> {
                 return "parameterType";
             case 4:
                 return "methodId";
+            case 5:
+                return "stream";
+            case 6:
+                return "idempotent";
+            case 7:
+                return "oneWay";
             default:
                 return null;
         }
@@ -81,6 +106,12 @@ public class MethodMetadataSchema implements Schema<MethodMetadata> {
                 return 3;
             case "methodId":
                 return 4;
+            case "stream":
+                return 5;
+            case "idempotent":
+                return 6;
+            case "oneWay":
+                return 7;
             default:
                 return 0;
         }
@@ -3,6 +3,7 @@ package com.lee.rpc.schema;
 import com.lee.rpc.MethodMetadata;
 import com.lee.rpc.RpcMethodUnit;
 import com.lee.rpc.RpcService;
+import com.lee.rpc.helper.ProtocolHelper;
 import com.lee.rpc.helper.Weight;
 import io.netty.util.collection.ByteObjectMap;
 import io.protostuff.Input;
@@ -34,6 +35,7 @@ public class RpcServiceSchema implements Schema<RpcService> {
                             new RpcMethodUnit()
                                     .withMetadata(metadata)
                                     .withMethodId(metadata.getMethodId())
+                                    .withStream(metadata.isStream())
                                     .withReturnType(metadata.getReturnType())
                                     .withParameterType(metadata.getParameterType())
                     );
@@ -44,6 +46,9 @@ public class RpcServiceSchema implements Schema<RpcService> {
                 case 3:
                     message.setWeight(Weight.toWeight(input.readInt32()));
                     break;
+                case 4:
+                    message.setProtocolVersion(input.readInt32());
+                    break;
                 default:
                     input.handleUnknownField(number, this);
             }
@@ -59,6 +64,7 @@ public class RpcServiceSchema implements Schema<RpcService> {
         }
         output.writeInt32(2, message.getServiceId(), false);
         output.writeInt32(3, message.getWeight().value(), false);
+        output.writeInt32(4, ProtocolHelper.PROTOCOL_VERSION, false);
     }
 
     @Override
@@ -70,6 +76,8 @@ public class RpcServiceSchema implements Schema<RpcService> {
                 return "serviceId";
             case 3:
                 return "weight";
+            case 4:
+                return "protocolVersion";
             default:
                 return null;
         }
@@ -84,6 +92,8 @@ public class RpcServiceSchema implements Schema<RpcService> {
                 return 2;
             case "weight":
                 return 3;
+            case "protocolVersion":
+                return 4;
             default:
                 return 0;
         }
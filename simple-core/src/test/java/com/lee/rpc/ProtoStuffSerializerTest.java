@@ -0,0 +1,239 @@
+package com.lee.rpc;
+
+import com.lee.rpc.helper.SchemaGenerator;
+import com.lee.rpc.helper.recycler.ByteBufInputStreamRecycler;
+import com.lee.rpc.helper.recycler.ByteBufOutputStreamRecycler;
+import com.lee.rpc.schema.GeneratedSchema;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.protostuff.LinkedBuffer;
+import io.protostuff.ProtostuffIOUtil;
+import io.protostuff.Schema;
+import io.protostuff.runtime.RuntimeSchema;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProtoStuffSerializerTest {
+
+    private final Schema<Message> schema = RuntimeSchema.getSchema(Message.class);
+
+    @Test
+    public void testSameBytesAsProtostuffIOUtil() {
+        Message message = Message.create();
+        byte[] expected = ProtostuffIOUtil.toByteArray(message, schema, LinkedBuffer.allocate(256));
+
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer();
+        try {
+            new ProtoStuffSerializer<>(Message.class).serialize(message, ByteBufOutputStreamRecycler.newInstance(buffer));
+            assertArrayEquals(expected, ByteBufUtil.getBytes(buffer));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testReadBytesFromProtostuffIOUtil() {
+        Message message = Message.create();
+        byte[] bytes = ProtostuffIOUtil.toByteArray(message, schema, LinkedBuffer.allocate(256));
+
+        Message value = new ProtoStuffSerializer<>(Message.class)
+                .deserialize(ByteBufInputStreamRecycler.newInstance(Unpooled.wrappedBuffer(bytes)));
+
+        assertEquals(message.number, value.number);
+        assertEquals(message.id, value.id);
+        assertEquals(message.text, value.text);
+        assertEquals(message.ratio, value.ratio, 0);
+        assertArrayEquals(message.data, value.data);
+        assertEquals(message.names, value.names);
+        assertEquals(message.children.get("child").text, value.children.get("child").text);
+    }
+
+    @Test
+    public void testGeneratedSchemaSameBytesAsRuntimeSchema() {
+        Bean bean = new Bean();
+        bean.setId(-1);
+        bean.setName("bean");
+        bean.setScore(3.5);
+
+        byte[] expected = ProtostuffIOUtil.toByteArray(
+                bean, RuntimeSchema.getSchema(Bean.class), LinkedBuffer.allocate(256)
+        );
+
+        //生成失败的时候会悄悄的使用RuntimeSchema，所以需要确认这里用的确实是生成的Schema
+        assertTrue(SchemaGenerator.getSchema(Bean.class) instanceof GeneratedSchema);
+
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer();
+        try {
+            ProtoStuffSerializer<Bean> serializer = new ProtoStuffSerializer<>(Bean.class);
+            serializer.serialize(bean, ByteBufOutputStreamRecycler.newInstance(buffer));
+            assertArrayEquals(expected, ByteBufUtil.getBytes(buffer));
+
+            Bean value = serializer.deserialize(ByteBufInputStreamRecycler.newInstance(buffer));
+            assertEquals(bean.getId(), value.getId());
+            assertEquals(bean.getName(), value.getName());
+            assertEquals(bean.getScore(), value.getScore());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testGeneratedSchemaAllKindsSameBytesAsRuntimeSchema() {
+        assertTrue(SchemaGenerator.getSchema(Rich.class) instanceof GeneratedSchema);
+        //没有getter/setter的字段不支持，整个类型使用RuntimeSchema
+        assertFalse(SchemaGenerator.getSchema(Message.class) instanceof GeneratedSchema);
+
+        Rich rich = Rich.create();
+        byte[] expected = ProtostuffIOUtil.toByteArray(
+                rich, RuntimeSchema.getSchema(Rich.class), LinkedBuffer.allocate(256)
+        );
+
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer();
+        try {
+            ProtoStuffSerializer<Rich> serializer = new ProtoStuffSerializer<>(Rich.class);
+            serializer.serialize(rich, ByteBufOutputStreamRecycler.newInstance(buffer));
+            assertArrayEquals(expected, ByteBufUtil.getBytes(buffer));
+
+            Rich value = serializer.deserialize(ByteBufInputStreamRecycler.newInstance(buffer));
+            assertEquals(rich.getCreated(), value.getCreated());
+            assertEquals(rich.small, value.small);
+            assertEquals(rich.tiny, value.tiny);
+            assertEquals(rich.letter, value.letter);
+            assertEquals(rich.boxedShort, value.boxedShort);
+            assertEquals(rich.boxedByte, value.boxedByte);
+            assertEquals(rich.boxedChar, value.boxedChar);
+            assertNull(value.missing);
+            assertNull(value.missingText);
+            assertEquals(rich.color, value.color);
+            assertEquals(rich.bean.getName(), value.bean.getName());
+            assertEquals(rich.bean.getScore(), value.bean.getScore());
+            assertEquals(rich.next.small, value.next.small);
+            assertEquals(rich.next.color, value.next.color);
+            assertNull(value.next.next);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public enum Color {
+        RED, GREEN, BLUE
+    }
+
+    public static class Base {
+        private long created;
+
+        public long getCreated() {
+            return created;
+        }
+
+        public void setCreated(long created) {
+            this.created = created;
+        }
+    }
+
+    /**
+     * 父类的字段，short/byte/char(UInt32)，值为null的包装类型，enum，嵌套对象(group)以及引用自己的字段
+     */
+    public static class Rich extends Base {
+        public short small;
+        public byte tiny;
+        public char letter;
+        public Short boxedShort;
+        public Byte boxedByte;
+        public Character boxedChar;
+        public Integer missing;
+        public String missingText;
+        public Color color;
+        public Bean bean;
+        public Rich next;
+
+        static Rich create() {
+            Rich rich = new Rich();
+            rich.setCreated(1234567890123L);
+            rich.small = -2;
+            rich.tiny = -3;
+            rich.letter = '世';
+            rich.boxedShort = 300;
+            rich.boxedByte = 7;
+            rich.boxedChar = 'x';
+            rich.color = Color.BLUE;
+
+            rich.bean = new Bean();
+            rich.bean.setName("nested");
+            rich.bean.setScore(1.5);
+
+            rich.next = new Rich();
+            rich.next.small = 9;
+            rich.next.color = Color.GREEN;
+            return rich;
+        }
+    }
+
+    public static class Bean {
+        private int id;
+        private String name;
+        private Double score;
+
+        public int getId() {
+            return id;
+        }
+
+        public void setId(int id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public Double getScore() {
+            return score;
+        }
+
+        public void setScore(Double score) {
+            this.score = score;
+        }
+    }
+
+    public static class Message {
+        int number;
+        long id;
+        String text;
+        double ratio;
+        byte[] data;
+        List<String> names = new ArrayList<>();
+        Map<String, Message> children = new HashMap<>();
+
+        static Message create() {
+            Message message = new Message();
+            message.number = -1;
+            message.id = Long.MAX_VALUE;
+            message.text = "hello 世界 😀";
+            message.ratio = 0.5;
+            message.data = new byte[]{1, -1, 127};
+            message.names.add("a");
+            message.names.add("b");
+
+            Message child = new Message();
+            child.text = "child";
+            message.children.put("child", child);
+            return message;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.lee.rpc.encoder;
+
+import com.lee.rpc.RpcMethodUnit;
+import com.lee.rpc.RpcRequest;
+import com.lee.rpc.RpcRequestBatch;
+import com.lee.rpc.decoder.RpcServerDecoder;
+import com.lee.rpc.helper.recycler.RpcRequestBatchRecycler;
+import com.lee.rpc.helper.recycler.RpcRequestRecycler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.lee.rpc.helper.ProtocolHelper.BATCH_BODY_LIMIT;
+import static com.lee.rpc.helper.ProtocolHelper.DEFAULT_MAX_FRAME_LENGTH;
+import static com.lee.rpc.helper.ProtocolHelper.ENTRY_HEADER_LENGTH;
+import static com.lee.rpc.helper.RpcHelper.PROTOCOL;
+import static com.lee.rpc.util.Constant.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BATCH帧从客户端的encoder到服务器的decoder走一遍，body超过BATCH_BODY_LIMIT的时候需要拆成多个帧
+ */
+public class RpcClientEncoderTest {
+
+    private static final int SERVICE_ID = 9527;
+    private static final int ENTRY_COUNT = 24;
+    private static final int PAYLOAD_SIZE = 9000;
+
+    @Test
+    public void testBatchRoundTripV3() {
+        roundTrip(PROTOCOL_V3);
+    }
+
+    @Test
+    public void testBatchRoundTripV4() {
+        roundTrip(PROTOCOL_V4);
+    }
+
+    private void roundTrip(int version) {
+        List<Entry> entries = createEntries();
+        ByteBuf encoded = encode(entries, version);
+        try {
+            assertFrames(encoded, entries, version);
+
+            List<RpcRequest> dispatched = decode(encoded.retain(), version);
+            try {
+                assertEquals(ENTRY_COUNT, dispatched.size());
+                for (int i = 0; i < ENTRY_COUNT; i++) {
+                    assertDispatched(entries.get(i), dispatched.get(i), version);
+                }
+            } finally {
+                dispatched.forEach(RpcRequestRecycler::recycle);
+            }
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * 偶数的entry带参数，奇数的entry没有参数，每3个里面有一个没有超时时间
+     */
+    private static List<Entry> createEntries() {
+        List<Entry> entries = new ArrayList<>(ENTRY_COUNT);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            byte[] payload = null;
+            if (i % 2 == 0) {
+                payload = new byte[PAYLOAD_SIZE + i];
+                Arrays.fill(payload, (byte) i);
+            }
+            long timeoutMillis = i % 3 == 0 ? 0 : (i + 1) * 1000L;
+            entries.add(new Entry(1000L + i, (byte) (i % 5 + 1), payload, timeoutMillis));
+        }
+        return entries;
+    }
+
+    private static ByteBuf encode(List<Entry> entries, int version) {
+        EmbeddedChannel client = new EmbeddedChannel(new RpcClientEncoder());
+        client.attr(PROTOCOL).set(version);
+
+        RpcRequestBatch batch = RpcRequestBatchRecycler.newInstance(SERVICE_ID);
+        for (Entry entry : entries) {
+            RpcRequest request = RpcRequestRecycler.newInstance(SERVICE_ID, entry.requestId, entry.methodId);
+            request.setTypeId(entry.payload == null ? EMPTY_TYPE : OBJECT);
+            if (entry.payload != null) {
+                request.payload(Unpooled.wrappedBuffer(entry.payload));
+            }
+            request.deadline(entry.timeoutMillis == 0 ? 0 :
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(entry.timeoutMillis));
+            batch.add(request);
+        }
+        assertTrue(client.writeOutbound(batch));
+
+        ByteBuf encoded = Unpooled.buffer();
+        ByteBuf frame;
+        while ((frame = client.readOutbound()) != null) {
+            encoded.writeBytes(frame);
+            frame.release();
+        }
+        client.finish();
+        return encoded;
+    }
+
+    /**
+     * 直接按照协议的格式检查每一个BATCH帧，entry的个数放在requestId的位置，每一个entry都有自己的协议头
+     */
+    private static void assertFrames(ByteBuf encoded, List<Entry> entries, int version) {
+        ByteBuf in = encoded.duplicate();
+        int frames = 0;
+        int index = 0;
+        while (in.isReadable()) {
+            assertEquals(SERVICE_ID, in.readInt());
+            long count = in.readLong();
+            assertEquals(EMPTY_VALUE, in.readByte());
+            assertEquals(BATCH, in.readByte());
+            int bodyLength = in.readInt();
+            ByteBuf body = in.readSlice(bodyLength);
+            frames++;
+
+            for (long i = 0; i < count; i++) {
+                Entry entry = entries.get(index++);
+                assertEquals(entry.requestId, body.readLong());
+                assertEquals(entry.methodId, body.readByte());
+                assertEquals(entry.payload == null ? EMPTY_TYPE : OBJECT, body.readByte());
+                ByteBuf entryBody = body.readSlice(body.readInt());
+                if (version >= PROTOCOL_V4) {
+                    int timeout = entryBody.readInt();
+                    if (entry.timeoutMillis == 0) {
+                        assertEquals(0, timeout);
+                    } else {
+                        assertTrue(timeout > 0 && timeout <= entry.timeoutMillis);
+                    }
+                }
+                assertArrayEquals(entry.payload == null ? new byte[0] : entry.payload, ByteBufUtil.getBytes(entryBody));
+            }
+            assertEquals(0, body.readableBytes());
+
+            //只有在超过BATCH_BODY_LIMIT以后才会开始一个新的帧，所以除了最后一个帧以外都不会小于这个值
+            int maxEntryLength = ENTRY_HEADER_LENGTH + 4 + PAYLOAD_SIZE + ENTRY_COUNT;
+            assertTrue(bodyLength < BATCH_BODY_LIMIT + maxEntryLength);
+            if (in.isReadable()) {
+                assertTrue(bodyLength >= BATCH_BODY_LIMIT);
+            }
+        }
+        assertEquals(entries.size(), index);
+        assertTrue("Batch should be split into more than one frame", frames > 1);
+    }
+
+    private static List<RpcRequest> decode(ByteBuf encoded, int version) {
+        List<RpcRequest> dispatched = new ArrayList<>();
+        RpcMethodUnit unit = new RpcMethodUnit().withExecutor(task -> dispatched.add((RpcRequest) task));
+        //参数交给executor的线程反序列化，decoder只是把entry的body放到payload里面，方便直接比较字节
+        unit.setDeserializeOnWorker(true);
+
+        EmbeddedChannel server = new EmbeddedChannel(new RpcServerDecoder(DEFAULT_MAX_FRAME_LENGTH, version) {
+            @Override
+            protected RpcMethodUnit getRpcMethodUnit(int serviceId, byte methodId) {
+                return unit;
+            }
+        });
+        server.writeInbound(encoded);
+        //decoder出错的时候会给客户端写一个ABNORMAL的回复，其他的错误由EmbeddedChannel抛出来
+        assertTrue(server.outboundMessages().isEmpty());
+        server.finish();
+        return dispatched;
+    }
+
+    private static void assertDispatched(Entry entry, RpcRequest request, int version) {
+        assertEquals(SERVICE_ID, request.getServiceId());
+        assertEquals(entry.requestId, request.getRequestId());
+        assertEquals(entry.methodId, request.getMethodId());
+
+        if (entry.payload == null) {
+            //没有参数的请求在服务器端使用EMPTY_VALUE作为body
+            assertNull(request.getPayload());
+            assertEquals(EMPTY_VALUE, request.getBody());
+        } else {
+            assertEquals(OBJECT, request.getTypeId());
+            assertArrayEquals(entry.payload, ByteBufUtil.getBytes(request.getPayload()));
+        }
+
+        if (version < PROTOCOL_V4 || entry.timeoutMillis == 0) {
+            assertEquals(0, request.getDeadline());
+        } else {
+            long remaining = request.getDeadline() - System.nanoTime();
+            assertTrue(remaining > 0 && remaining <= TimeUnit.MILLISECONDS.toNanos(entry.timeoutMillis));
+        }
+    }
+
+    private static final class Entry {
+
+        private final long requestId;
+        private final byte methodId;
+        private final byte[] payload;
+        private final long timeoutMillis;
+
+        Entry(long requestId, byte methodId, byte[] payload, long timeoutMillis) {
+            this.requestId = requestId;
+            this.methodId = methodId;
+            this.payload = payload;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+}
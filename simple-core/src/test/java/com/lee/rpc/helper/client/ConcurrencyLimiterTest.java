@@ -0,0 +1,42 @@
+package com.lee.rpc.helper.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void testQueueAndBackoff() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertFalse(limiter.acquire(10, TimeUnit.MILLISECONDS));
+
+        //排队的请求在有请求回复的时候拿到许可
+        AtomicInteger acquired = new AtomicInteger();
+        limiter.enqueue(new ConcurrencyLimiter.Waiter() {
+            @Override
+            protected void onAcquired() {
+                acquired.incrementAndGet();
+            }
+        });
+        assertEquals(0, acquired.get());
+        limiter.release(TimeUnit.MILLISECONDS.toNanos(1), false);
+        assertEquals(1, acquired.get());
+        assertEquals(2, limiter.getInflight());
+
+        //服务器过载的时候limit减小，但是不会小于1
+        for (int i = 0; i < 100; i++) {
+            limiter.release(0, true);
+            limiter.tryAcquire();
+        }
+        assertEquals(1, limiter.getLimit());
+    }
+}
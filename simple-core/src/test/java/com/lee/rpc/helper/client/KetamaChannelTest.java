@@ -0,0 +1,72 @@
+package com.lee.rpc.helper.client;
+
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultChannelId;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.lee.rpc.helper.ProtocolHelper.PROTOCOL_VERSION;
+import static com.lee.rpc.helper.RpcHelper.ADDRESS;
+import static com.lee.rpc.helper.RpcHelper.PROTOCOL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class KetamaChannelTest {
+
+    private static final InetSocketAddress SLOW = new InetSocketAddress("127.0.0.1", 9527);
+    private static final InetSocketAddress FAST = new InetSocketAddress("127.0.0.1", 9528);
+
+    @Test
+    public void testExcludeSkipsEveryChannelOfAddress() {
+        KetamaChannel ketama = new KetamaChannel();
+        List<Channel> channels = new ArrayList<>();
+        //每一个地址的权重都是3，同一个地址有3个Channel
+        for (int i = 0; i < 3; i++) {
+            channels.add(fill(ketama, SLOW));
+            channels.add(fill(ketama, FAST));
+        }
+
+        try {
+            for (long requestId = 0; requestId < 1000; requestId++) {
+                Channel channel = ketama.getChannel(requestId, SLOW);
+                assertNotNull(channel);
+                assertEquals(FAST, channel.attr(ADDRESS).get());
+            }
+        } finally {
+            channels.forEach(Channel::close);
+        }
+    }
+
+    @Test
+    public void testExcludeOnlyAddressReturnsNull() {
+        KetamaChannel ketama = new KetamaChannel();
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            channels.add(fill(ketama, SLOW));
+        }
+
+        try {
+            //只有一个RpcServer的时候不能够对冲，而不是发送到同一个RpcServer的另外一个连接上面去
+            for (long requestId = 0; requestId < 100; requestId++) {
+                assertNull(ketama.getChannel(requestId, SLOW));
+                assertNotNull(ketama.getChannel(requestId));
+            }
+        } finally {
+            channels.forEach(Channel::close);
+        }
+    }
+
+    private static Channel fill(KetamaChannel ketama, InetSocketAddress address) {
+        //EmbeddedChannel默认的id都是一样的，需要单独指定，否则在hash环上面的位置会重叠
+        EmbeddedChannel channel = new EmbeddedChannel(DefaultChannelId.newInstance());
+        channel.attr(ADDRESS).set(address);
+        channel.attr(PROTOCOL).set((int) PROTOCOL_VERSION);
+        ketama.fillChannelWithWeight(channel);
+        return channel;
+    }
+}
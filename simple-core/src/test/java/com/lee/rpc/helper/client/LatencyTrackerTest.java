@@ -0,0 +1,32 @@
+package com.lee.rpc.helper.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testP95() {
+        LatencyTracker tracker = new LatencyTracker();
+        assertEquals(-1, tracker.p95Micros());
+
+        //90%是1毫秒，10%是100毫秒，p95落在100毫秒那一个桶里面
+        for (int i = 0; i < 2048; i++) {
+            long millis = i % 10 == 0 ? 100 : 1;
+            tracker.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        long p95 = tracker.p95Micros();
+        assertTrue("p95 " + p95, p95 >= 100_000 && p95 <= 125_000);
+
+        //服务器恢复以后，衰减几个窗口p95就会降下来
+        for (int i = 0; i < 8 * 1024; i++) {
+            tracker.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        p95 = tracker.p95Micros();
+        assertTrue("p95 " + p95, p95 >= 1_000 && p95 <= 1_250);
+    }
+}
@@ -0,0 +1,66 @@
+package com.lee.rpc.helper.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+
+    @Test
+    public void testFrequencyAdmission() {
+        ResultCache cache = new ResultCache(null, 100, 60000);
+        //热点数据访问多次以后，大量只访问一次的数据不应该把它们挤出去
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                ResultCache.Key key = cache.key(key(i));
+                if (cache.get(key) == ResultCache.MISS) {
+                    cache.put(key, i);
+                }
+            }
+        }
+        for (int i = 1000; i < 11000; i++) {
+            ResultCache.Key key = cache.key(key(i));
+            if (cache.get(key) == ResultCache.MISS) {
+                cache.put(key, i);
+            }
+        }
+
+        int retained = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(cache.key(key(i))) != ResultCache.MISS) {
+                retained++;
+            }
+        }
+        assertTrue("retained " + retained, retained >= 45);
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    @Test
+    public void testTtlAndInvalidate() throws InterruptedException {
+        ResultCache cache = new ResultCache(null, 10, 50);
+        ResultCache.Key key = cache.key(null);
+        cache.put(key, null);
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getHitCount());
+
+        Thread.sleep(80);
+        assertSame(ResultCache.MISS, cache.get(key));
+
+        //invalidate之前创建的Key对应的回复可能是旧的数据，不能够再放进去
+        ResultCache.Key stale = cache.key(key(1));
+        cache.invalidateAll();
+        cache.put(stale, "old");
+        assertSame(ResultCache.MISS, cache.get(cache.key(key(1))));
+        assertEquals(0, cache.size());
+    }
+
+    private static ByteBuf key(int i) {
+        return Unpooled.copyInt(i);
+    }
+}
@@ -0,0 +1,55 @@
+package com.lee.rpc.helper.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void testRetriesLimitedBySuccesses() {
+        RetryBudget budget = new RetryBudget(10, 0, 0, 0);
+        //初始只有一次重试的令牌
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+
+        //每10个成功的回复可以换来一次重试
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertEquals(10, budget.getBalance());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.tryWithdraw());
+        }
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testRefundUnsentRetry() {
+        RetryBudget budget = new RetryBudget(10, 0, 0, 0);
+        assertTrue(budget.tryWithdraw());
+        assertEquals(0, budget.getBalance());
+
+        //取出以后没有发送出去，还回去以后下一次重试还可以使用
+        budget.refund();
+        assertEquals(1, budget.getBalance());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testBackoffWithJitter() {
+        RetryBudget budget = new RetryBudget(0, 0, 10, 50);
+        //不限制重试的时候只是退避
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(budget.tryWithdraw());
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(budget.backoffMillis(1) <= 10);
+            assertTrue(budget.backoffMillis(3) <= 40);
+            assertTrue(budget.backoffMillis(30) <= 50);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.lee.rpc.helper.client;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RpcBatchTest {
+
+    @Test
+    public void testPlaceholderOnlyWhileRecording() {
+        assertNull(RpcBatch.placeholder(null, int.class));
+        assertSame("value", RpcBatch.placeholder("value", String.class));
+
+        RpcBatch.of(this).call(c -> {
+            assertEquals(0, RpcBatch.placeholder(null, int.class));
+            assertEquals(0L, RpcBatch.placeholder(null, long.class));
+            assertEquals(false, RpcBatch.placeholder(null, boolean.class));
+            assertEquals((char) 0, RpcBatch.placeholder(null, char.class));
+            assertEquals(0.0D, RpcBatch.placeholder(null, double.class));
+            //不是基本类型的时候还是返回null，真正的结果由execute返回
+            assertNull(RpcBatch.placeholder(null, Integer.class));
+            assertEquals(7, RpcBatch.placeholder(7, int.class));
+        });
+    }
+
+    @Test
+    public void testPrimitiveSyncMethodCanBeRecorded() throws Exception {
+        //和RpcClientGenerator生成的同步方法一样的写法，ClientProxy.invoke在记录的时候返回null
+        Counter counter = generate();
+        RpcBatch.of(counter).call(c -> {
+            assertEquals(0, c.count());
+            assertFalse(c.exists());
+        });
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testPrimitiveSyncMethodOutsideBatch() throws Exception {
+        //不在记录的时候原样返回，服务器返回null的时候和之前一样
+        generate().count();
+    }
+
+    private static Counter generate() throws Exception {
+        ClassPool pool = ClassPool.getDefault();
+        CtClass stub = pool.makeClass(Counter.class.getName() + "$Stub" + System.nanoTime());
+        stub.addInterface(pool.get(Counter.class.getName()));
+        stub.addConstructor(CtNewConstructor.defaultConstructor(stub));
+
+        String call = RpcBatch.class.getName() + ".placeholder(null, $type)";
+        CtMethod count = new CtMethod(CtClass.intType, "count", null, stub);
+        count.setBody("{return ($r)" + call + ";}");
+        stub.addMethod(count);
+        CtMethod exists = new CtMethod(CtClass.booleanType, "exists", null, stub);
+        exists.setBody("{return ($r)" + call + ";}");
+        stub.addMethod(exists);
+
+        return (Counter) stub.toClass(RpcBatchTest.class).getConstructor().newInstance();
+    }
+
+    public interface Counter {
+
+        int count();
+
+        boolean exists();
+    }
+}
@@ -0,0 +1,80 @@
+package com.lee.rpc.helper.client;
+
+import com.lee.rpc.RpcMethodUnit;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testCoalesceSameParameter() {
+        SingleFlight singleFlight = new SingleFlight();
+        RpcMethodUnit unit = new RpcMethodUnit();
+        CompletableFuture<Object> send = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<Object> leader = singleFlight.execute(unit, encoded("same"), () -> {
+            calls.incrementAndGet();
+            return send;
+        });
+        CompletableFuture<Object> follower = singleFlight.execute(unit, encoded("same"), () -> {
+            calls.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+
+        //相同的参数只发送一次
+        assertEquals(1, calls.get());
+        send.complete("value");
+        assertEquals("value", leader.join());
+        assertEquals("value", follower.join());
+    }
+
+    @Test
+    public void testLeaderCancelDoesNotAffectFollower() {
+        SingleFlight singleFlight = new SingleFlight();
+        RpcMethodUnit unit = new RpcMethodUnit();
+        CompletableFuture<Object> send = new CompletableFuture<>();
+
+        CompletableFuture<Object> leader = singleFlight.execute(unit, encoded("same"), () -> send);
+        CompletableFuture<Object> follower = singleFlight.execute(
+                unit, encoded("same"), CompletableFuture::new
+        );
+
+        //发送请求的调用者不再需要结果了，正在发送的请求和其他调用者都不受影响
+        assertTrue(leader.cancel(false));
+        assertFalse(send.isDone());
+
+        send.complete("value");
+        assertEquals("value", follower.join());
+    }
+
+    @Test
+    public void testFollowerCompleteDoesNotAffectLeader() {
+        SingleFlight singleFlight = new SingleFlight();
+        RpcMethodUnit unit = new RpcMethodUnit();
+        CompletableFuture<Object> send = new CompletableFuture<>();
+
+        CompletableFuture<Object> leader = singleFlight.execute(unit, encoded("same"), () -> send);
+        CompletableFuture<Object> follower = singleFlight.execute(
+                unit, encoded("same"), CompletableFuture::new
+        );
+
+        follower.complete("fallback");
+        send.complete("value");
+        assertEquals("value", leader.join());
+        assertEquals("fallback", follower.join());
+    }
+
+    private static ByteBuf encoded(String parameter) {
+        return Unpooled.copiedBuffer(parameter, UTF_8);
+    }
+}
@@ -3,9 +3,14 @@ package com.lee.rpc.sample;
 import com.lee.rpc.annotation.RpcClient;
 import com.lee.rpc.annotation.RpcMethod;
 
+import java.util.concurrent.CompletableFuture;
+
 @RpcClient(location = "simple://127.0.0.1:8080", service = "helloworld2")
 public interface HelloWorldClient2 {
 
     @RpcMethod
     String saySay(Integer integer);
+
+    @RpcMethod
+    CompletableFuture<String> saySayAsync(Integer integer);
 }
@@ -10,10 +10,36 @@ public interface Constant {
     byte NORMAL = 126;
     byte ABNORMAL = 125;
     byte METADATA = 124;
+    byte BATCH = 123;
+
+    /**
+     * 流式返回值里面的一个元素，同一个请求的所有元素使用同一个requestId，最后使用EMPTY_TYPE表示结束，ABNORMAL表示出错
+     */
+    byte STREAM = 122;
+
+    /**
+     * 客户端超时或者不再需要结果的时候发送，告诉服务器这个requestId的请求可以不用执行了，只有协议头，没有body
+     */
+    byte CANCEL = 121;
 
     byte EMPTY_TYPE = 0;
     byte OBJECT = 1;
 
+    /**
+     * V6开始请求的type(OBJECT和EMPTY_TYPE)上面可以带上这个标记，表示客户端不等待回复，服务器执行完以后不需要写回复
+     */
+    byte ONE_WAY_FLAG = 0x10;
+
+    /**
+     * 协议版本，V1的bodyLength是2个字节，V2开始bodyLength是4个字节，V3开始支持BATCH，V4开始请求携带超时时间，
+     * V5开始支持CANCEL，V6开始支持ONE_WAY_FLAG，版本在METADATA交换的时候协商
+     */
+    byte PROTOCOL_V1 = 1;
+    byte PROTOCOL_V2 = 2;
+    byte PROTOCOL_V3 = 3;
+    byte PROTOCOL_V4 = 4;
+    byte PROTOCOL_V5 = 5;
+    byte PROTOCOL_V6 = 6;
 
     String EMPTY = "N/A";
 }
\ No newline at end of file
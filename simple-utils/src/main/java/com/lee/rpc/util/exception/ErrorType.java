@@ -16,5 +16,13 @@ public enum ErrorType {
     NOT_SUPPORT_TYPE,
     SERVICE_BUSY,
     CLIENT_SERIALIZER_ERROR,
-    NOT_EXIST_SERVICE_ID
+    NOT_EXIST_SERVICE_ID,
+    /**
+     * 只在客户端使用，请求在指定的时间内没有收到回复，不会在网络上传输，并且只能够加在最后，因为传输的是ordinal
+     */
+    TIMEOUT,
+    /**
+     * 只在客户端使用，请求已经发送出去了，但是还没有收到回复Channel就断开了，服务器可能执行了也可能没有执行
+     */
+    CHANNEL_INACTIVE
 }
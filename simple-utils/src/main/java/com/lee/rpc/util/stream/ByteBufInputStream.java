@@ -107,6 +107,13 @@ public class ByteBufInputStream extends InputStream implements DataInput {
         this.handle = handle;
     }
 
+    /**
+     * Returns the buffer where this stream is reading data.
+     */
+    public ByteBuf buffer() {
+        return buffer;
+    }
+
     /**
      * Returns the number of read bytes by this stream so far.
      */